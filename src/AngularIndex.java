@@ -0,0 +1,342 @@
+import java.util.Arrays;
+
+/**
+ * <h1>Angular Index</h1>
+ * k-d tree over the unit normals of a catalog supporting cone, convex polygon and ra/dec box queries. Query results
+ * are galaxy indices into the catalog, which can be turned into a sub-catalog with Catalog.view.
+ */
+public class AngularIndex {
+    // Indexed catalog.
+    final Catalog cat;
+
+    // Galaxy indices ordered so that every node covers a contiguous range.
+    private final int ids[];
+
+    // Root node of the tree.
+    private final Node root;
+
+    // Maximum number of galaxies in a leaf.
+    private static final int LEAF_SIZE = 16;
+
+    /**
+     * Constructor. Builds the tree.
+     *
+     * @param cat Catalog to index.
+     */
+    public AngularIndex(Catalog cat){
+        this.cat = cat;
+
+        ids = new int[cat.gals.length];
+        for(int i = 0; i < ids.length; i++) ids[i] = i;
+
+        root = build(0, ids.length);
+    }
+
+    /**
+     * Returns the indices of all galaxies within an angular radius of a point.
+     *
+     * @param ra Right ascension of the center in degrees.
+     * @param dec Declination of the center in degrees.
+     * @param radius Angular radius in degrees.
+     * @return Sorted galaxy indices.
+     */
+    public int[] cone(double ra, double dec, double radius){
+        double c[] = unitVector(ra, dec);
+        return query(new ConeRegion(c, Math.toRadians(radius)));
+    }
+
+    /**
+     * Returns the indices of all galaxies inside a convex spherical polygon with great circle edges. The vertices
+     * may be given in either orientation.
+     *
+     * @param ra Right ascension of each vertex in degrees.
+     * @param dec Declination of each vertex in degrees.
+     * @return Sorted galaxy indices.
+     */
+    public int[] polygon(double ra[], double dec[]){
+        int n = ra.length;
+        if(n < 3 || dec.length != n) throw new IllegalArgumentException("A polygon needs at least 3 vertices.");
+
+        // Calculate the edge normals and the bounding cone of the vertices.
+        double vertices[][] = new double[n][];
+        double center[] = new double[3];
+        for(int v = 0; v < n; v++){
+            vertices[v] = unitVector(ra[v], dec[v]);
+            for(int d = 0; d < 3; d++) center[d] += vertices[v][d];
+        }
+        normalize(center);
+
+        double edges[][] = new double[n][];
+        double maxAngle = 0;
+        for(int v = 0; v < n; v++){
+            edges[v] = cross(vertices[v], vertices[(v + 1) % n]);
+            maxAngle = Math.max(maxAngle, Math.acos(Math.min(1, dot(center, vertices[v]))));
+        }
+
+        // Caps wider than a hemisphere do not bound their great circle edges, so skip the pruning.
+        ConeRegion bound = new ConeRegion(center, maxAngle < Math.PI / 2 ? maxAngle : Math.PI);
+
+        // Orient the edges so that the center is on the inside.
+        for(int v = 0; v < n; v++){
+            if(dot(edges[v], center) < 0){
+                for(int d = 0; d < 3; d++) edges[v][d] = -edges[v][d];
+            }
+        }
+
+        return query(new Region() {
+            @Override
+            public boolean intersects(Node node) {
+                return bound.intersects(node);
+            }
+
+            @Override
+            public boolean contains(int id) {
+                CartesianGalaxy p = cat.cartNorms[id];
+                for(int v = 0; v < n; v++){
+                    if(edges[v][0] * p.x + edges[v][1] * p.y + edges[v][2] * p.z < 0) return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns the indices of all galaxies inside an ra/dec box. If raMin is larger than raMax the box wraps
+     * through ra = 0.
+     *
+     * @param raMin Minimum right ascension in degrees.
+     * @param raMax Maximum right ascension in degrees.
+     * @param decMin Minimum declination in degrees.
+     * @param decMax Maximum declination in degrees.
+     * @return Sorted galaxy indices.
+     */
+    public int[] box(double raMin, double raMax, double decMin, double decMax){
+        double zMin = Math.sin(Math.toRadians(decMin));
+        double zMax = Math.sin(Math.toRadians(decMax));
+
+        return query(new Region() {
+            @Override
+            public boolean intersects(Node node) {
+                // Prune on the z range spanned by the declination limits.
+                return node.max[2] >= zMin && node.min[2] <= zMax;
+            }
+
+            @Override
+            public boolean contains(int id) {
+                Galaxy g = cat.gals[id];
+                if(g.dec < decMin || g.dec > decMax) return false;
+
+                double ra = ((g.ra % 360) + 360) % 360;
+                if(raMin <= raMax) return ra >= raMin && ra <= raMax;
+                return ra >= raMin || ra <= raMax;
+            }
+        });
+    }
+
+    /**
+     * Collects the indices of all galaxies inside a region.
+     *
+     * @param region Region to search.
+     * @return Sorted galaxy indices.
+     */
+    private int[] query(Region region){
+        int result[] = new int[16];
+        int count = 0;
+
+        // Depth first search of the tree.
+        Node stack[] = new Node[64];
+        int top = 0;
+        stack[top++] = root;
+        while(top > 0){
+            Node node = stack[--top];
+            if(node == null || !region.intersects(node)) continue;
+
+            if(node.left == null){
+                for(int n = node.start; n < node.end; n++){
+                    if(!region.contains(ids[n])) continue;
+
+                    if(count == result.length) result = Arrays.copyOf(result, 2 * count);
+                    result[count++] = ids[n];
+                }
+            }else{
+                if(top + 2 > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[top++] = node.left;
+                stack[top++] = node.right;
+            }
+        }
+
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Recursively builds the tree over ids[start, end).
+     *
+     * @param start First position.
+     * @param end One past the last position.
+     * @return Node covering the range.
+     */
+    private Node build(int start, int end){
+        if(start >= end) return null;
+
+        Node node = new Node(start, end);
+
+        // Calculate the bounds of the node.
+        for(int n = start; n < end; n++){
+            for(int d = 0; d < 3; d++){
+                double value = coord(ids[n], d);
+                if(value < node.min[d]) node.min[d] = value;
+                if(value > node.max[d]) node.max[d] = value;
+            }
+        }
+        if(end - start <= LEAF_SIZE) return node;
+
+        // Split at the median of the widest dimension.
+        int axis = 0;
+        for(int d = 1; d < 3; d++){
+            if(node.max[d] - node.min[d] > node.max[axis] - node.min[axis]) axis = d;
+        }
+        int mid = (start + end) >>> 1;
+        select(start, end - 1, mid, axis);
+
+        node.left = build(start, mid);
+        node.right = build(mid, end);
+        return node;
+    }
+
+    /**
+     * Partially sorts ids[lo, hi] so that position k holds the element it would hold if sorted along the axis.
+     *
+     * @param lo First position.
+     * @param hi Last position.
+     * @param k Position to select.
+     * @param axis Coordinate axis.
+     */
+    private void select(int lo, int hi, int k, int axis){
+        while(lo < hi){
+            double pivot = coord(ids[(lo + hi) >>> 1], axis);
+            int i = lo, j = hi;
+            while(i <= j){
+                while(coord(ids[i], axis) < pivot) i++;
+                while(coord(ids[j], axis) > pivot) j--;
+                if(i <= j){
+                    int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j){
+                hi = j;
+            }else if(k >= i){
+                lo = i;
+            }else{
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns one coordinate of a galaxy's unit normal.
+     *
+     * @param id Galaxy index.
+     * @param axis Coordinate axis.
+     * @return Coordinate value.
+     */
+    private double coord(int id, int axis){
+        CartesianGalaxy p = cat.cartNorms[id];
+        return axis == 0 ? p.x : axis == 1 ? p.y : p.z;
+    }
+
+    /**
+     * Calculates the unit vector of an ra/dec position, matching Catalog.createNorms.
+     *
+     * @param ra Right ascension in degrees.
+     * @param dec Declination in degrees.
+     * @return Unit vector.
+     */
+    private static double[] unitVector(double ra, double dec){
+        double phi = Math.toRadians(ra);
+        double theta = Math.PI / 2.0 - Math.toRadians(dec);
+        return new double[]{Math.sin(theta) * Math.cos(phi), Math.sin(theta) * Math.sin(phi), Math.cos(theta)};
+    }
+
+    private static double dot(double a[], double b[]){
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] cross(double a[], double b[]){
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static void normalize(double a[]){
+        double norm = Math.sqrt(dot(a, a));
+        for(int d = 0; d < 3; d++) a[d] /= norm;
+    }
+
+    /**
+     * <h1>Node</h1>
+     * Node of the tree covering ids[start, end) with the bounding box of their unit normals.
+     */
+    private static class Node {
+        final int start, end;
+        final double min[] = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        final double max[] = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        Node left, right;
+
+        Node(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * <h1>Region</h1>
+     * A region of the sky that can be searched for in the tree.
+     */
+    private interface Region {
+        /**
+         * Conservative test of whether the region may contain any galaxy of a node.
+         */
+        boolean intersects(Node node);
+
+        /**
+         * Exact test of whether the region contains a galaxy.
+         */
+        boolean contains(int id);
+    }
+
+    /**
+     * <h1>Cone Region</h1>
+     * All points within an angle of a center, equivalently within a chord distance of it.
+     */
+    private class ConeRegion implements Region {
+        final double center[];
+        final double cosRadius;
+        final double chord2;
+
+        ConeRegion(double center[], double radius){
+            this.center = center;
+            this.cosRadius = Math.cos(radius);
+            double chord = 2 * Math.sin(Math.min(radius, Math.PI) / 2);
+            this.chord2 = chord * chord;
+        }
+
+        @Override
+        public boolean intersects(Node node) {
+            // Squared distance from the center to the node's bounding box.
+            double dist2 = 0;
+            for(int d = 0; d < 3; d++){
+                if(center[d] < node.min[d]) dist2 += Math.pow(node.min[d] - center[d], 2);
+                else if(center[d] > node.max[d]) dist2 += Math.pow(center[d] - node.max[d], 2);
+            }
+            return dist2 <= chord2 * (1 + 1e-12);
+        }
+
+        @Override
+        public boolean contains(int id) {
+            CartesianGalaxy p = cat.cartNorms[id];
+            return p.x * center[0] + p.y * center[1] + p.z * center[2] >= cosRadius;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * <h1>Assignment</h1>
+ * Mass assignment scheme used by an AverageMap to spread each galaxy sample over the voxels around it.
+ */
+public enum Assignment {
+    /**
+     * Nearest grid point. Each sample adds one count to the voxel containing it.
+     */
+    NGP,
+
+    /**
+     * Cloud-in-cell. Each sample is spread linearly over the 2x2x2 voxels whose centers surround it.
+     */
+    CIC,
+
+    /**
+     * Triangular-shaped cloud. Each sample is spread quadratically over the 3x3x3 voxels around the nearest voxel.
+     */
+    TSC
+}
@@ -1,74 +1,84 @@
+import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by pierfiedorowicz on 2/24/17.
  */
 public class Asteria {
     public static void main(String args[]) throws Exception{
-        Cosmology cosmo = new FlatLambdaCDM(0.7,0.286);
-
-        System.out.println("Loading Data");
-        Galaxy gals[] = DataHandler.loadGals("data/redmagic.fit");
-        Galaxy rands[] = DataHandler.loadRandoms("data/randoms.fit");
-
-        System.out.println("Creating Catalogs");
-        Catalog galCat = new Catalog(gals, cosmo);
-        Catalog randCat = new Catalog(rands, cosmo);
+        // Run as a resident map server instead: Asteria serve [port] [numWorkers] [dataDir]
+        if(args.length > 0 && args[0].equals("serve")){
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            int numWorkers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+            String dataDir = args.length > 3 ? args[3] : "data";
+            new MapServer(port, numWorkers, dataDir).start();
+            return;
+        }
 
-        System.out.println("Creating Bounding Box");
+        Cosmology cosmo = new FlatLambdaCDM(0.7,0.286);
         double voxLen = 20;
-        Box box = galCat.createBoundingBox(voxLen);
-        System.out.println("Box " + box.x0 + " " + box.y0 + " " + box.z0 + " " + box.nx + " " + box.ny + " " + box.nz);
+        Precision precision = Precision.DOUBLE;
 
-        System.out.println("Creating f-Map");
-        OccupancyMap fMap = new OccupancyMap(randCat,box,10,0.27659261716);
+        // Build the stage graph. Independent stages run concurrently and maps are written out asynchronously.
+        Pipeline pipeline = new Pipeline();
 
-        PrintWriter out = new PrintWriter("occ.csv");
-        for(int i = 0; i < box.nx; i++){
-            for(int j = 0; j < box.ny; j++){
-                for(int k = 0; k < box.nz; k++){
-                    double x = box.x0 + (i + 0.5) * box.voxLen;
-                    double y = box.x0 + (j + 0.5) * box.voxLen;
-                    double z = box.x0 + (k + 0.5) * box.voxLen;
+        // Catalogs are read from their columnar caches when possible.
+        CompletableFuture<Catalog> galCat = pipeline.stage("Loading Galaxy Catalog",
+                () -> CatalogCache.load("data/redmagic.fit", false, cosmo));
+        CompletableFuture<Catalog> randCat = pipeline.stage("Loading Randoms Catalog",
+                () -> CatalogCache.load("data/randoms.fit", true, cosmo));
 
-                    out.println(x + "," + y + "," + z + "," + fMap.map[i][j][k]);
-                }
-            }
-        }
-        out.close();
+        CompletableFuture<Box> box = pipeline.stage("Creating Bounding Box", () -> {
+            Box b = galCat.join().createBoundingBox(voxLen);
+            System.out.println("Box " + b.x0 + " " + b.y0 + " " + b.z0 + " " + b.nx + " " + b.ny + " " + b.nz);
+            return b;
+        }, galCat);
 
-        System.out.println("Creating d-Map");
-        DensityMap dMap = new DensityMap(galCat,box,1000,fMap);
+        CompletableFuture<OccupancyMap> fMap = pipeline.stage("Creating f-Map",
+                () -> new OccupancyMap(randCat.join(),box.join(),10,0.27659261716,precision), randCat, box);
+        pipeline.stage("Writing f-Map", () -> writeMap(fMap.join(), "occ.csv"), fMap);
 
-        out = new PrintWriter("delta.csv");
-        for(int i = 0; i < box.nx; i++){
-            for(int j = 0; j < box.ny; j++){
-                for(int k = 0; k < box.nz; k++){
-                    double x = box.x0 + (i + 0.5) * box.voxLen;
-                    double y = box.x0 + (j + 0.5) * box.voxLen;
-                    double z = box.x0 + (k + 0.5) * box.voxLen;
+        CompletableFuture<DensityMap> dMap = pipeline.stage("Creating d-Map",
+                () -> new DensityMap(galCat.join(),box.join(),1000,fMap.join(),precision), galCat, box, fMap);
+        CompletableFuture<Void> deltaWritten = pipeline.stage("Writing d-Map",
+                () -> writeMap(dMap.join(), "delta.csv"), dMap);
 
-                    out.println(x + "," + y + "," + z + "," + dMap.map[i][j][k]);
-                }
-            }
-        }
-        out.close();
+        // Regularization modifies the map in place, so it must wait for the raw map to be written.
+        CompletableFuture<DensityMap> regMap = pipeline.stage("Regularizing d-Map", () -> {
+            dMap.join().regularizeMap();
+            return dMap.join();
+        }, deltaWritten);
+        pipeline.stage("Writing Regularized d-Map", () -> writeMap(regMap.join(), "reg.csv"), regMap);
 
-        System.out.println("Regularizing d-Map");
-        dMap.regularizeMap();
+        pipeline.await();
+    }
+
+    /**
+     * Writes the voxel centers and values of a map to a csv file.
+     *
+     * @param avgMap Map to write.
+     * @param fname Filename to write to.
+     * @return null
+     * @throws FileNotFoundException
+     */
+    private static Void writeMap(AverageMap avgMap, String fname) throws FileNotFoundException {
+        Box box = avgMap.boundingBox;
 
-        out = new PrintWriter("reg.csv");
+        PrintWriter out = new PrintWriter(fname);
         for(int i = 0; i < box.nx; i++){
             for(int j = 0; j < box.ny; j++){
                 for(int k = 0; k < box.nz; k++){
                     double x = box.x0 + (i + 0.5) * box.voxLen;
-                    double y = box.x0 + (j + 0.5) * box.voxLen;
-                    double z = box.x0 + (k + 0.5) * box.voxLen;
+                    double y = box.y0 + (j + 0.5) * box.voxLen;
+                    double z = box.z0 + (k + 0.5) * box.voxLen;
 
-                    out.println(x + "," + y + "," + z + "," + dMap.map[i][j][k]);
+                    out.println(x + "," + y + "," + z + "," + avgMap.getValue(i,j,k));
                 }
             }
         }
         out.close();
+
+        return null;
     }
 }
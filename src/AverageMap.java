@@ -1,3 +1,9 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntToDoubleFunction;
+
 /**
  * <h1>Average Map</h1>
  * Abstract class used to generate map samples from a catalog. Requires implementation of the drawSample method.
@@ -5,9 +11,12 @@
  * Created by pierfiedorowicz on 2/26/17.
  */
 public abstract class AverageMap {
-    // The array of average map values.
+    // The array of average map values (DOUBLE precision).
     double map[][][];
 
+    // The array of average map values (MIXED precision).
+    float floatMap[][][];
+
     // Reference catalog and bounding box.
     Catalog cat;
     Box boundingBox;
@@ -15,6 +24,24 @@ public abstract class AverageMap {
     // Sample number information.
     final int numSamples;
 
+    // Storage precision of the samples and the average map.
+    final Precision precision;
+
+    // Options the map was created with, and the line-of-sight table if drawing directly into voxels.
+    final MapOptions options;
+    LineOfSightTable losTable;
+
+    // Offset of the first voxel in the map arrays. Non-zero only for views.
+    final int i0, j0, k0;
+
+    // Whether this map is a view sharing the map arrays of another map.
+    final boolean isView;
+
+    // Jackknife region of each voxel by flat index (-1 for none), and the leave-one-region-out average maps, if the
+    // map was created with jackknife regions.
+    int voxelRegions[];
+    double jackknifeMaps[][][][];
+
     /**
      * Constructor
      *
@@ -23,45 +50,389 @@ public abstract class AverageMap {
      * @param numSamples Number of samples to generate and average over.
      */
     public AverageMap(Catalog cat, Box boundingBox, int numSamples){
+        this(cat, boundingBox, numSamples, Precision.DOUBLE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cat Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples Number of samples to generate and average over.
+     * @param precision Storage precision of the samples and the average map.
+     */
+    public AverageMap(Catalog cat, Box boundingBox, int numSamples, Precision precision){
+        this(cat, boundingBox, numSamples, new MapOptions().precision(precision));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cat Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples Number of samples to generate and average over.
+     * @param options Options controlling how samples are drawn and stored.
+     */
+    public AverageMap(Catalog cat, Box boundingBox, int numSamples, MapOptions options){
         this.cat = cat;
         this.boundingBox = boundingBox;
         this.numSamples = numSamples;
+        this.options = options;
+        this.precision = options.precision;
+        this.i0 = this.j0 = this.k0 = 0;
+        this.isView = false;
+
+        // CIC and TSC spread each sample by its position within the voxel, which neither the line-of-sight tables nor
+        // the integer jackknife counts keep track of.
+        if(options.assignment != Assignment.NGP && (options.lineOfSight || options.regions != null)){
+            throw new IllegalArgumentException(options.assignment + " assignment supports neither line-of-sight "
+                    + "tables nor jackknife regions.");
+        }
+
+        // Tabulate the lines of sight if drawing directly into voxels.
+        if(options.lineOfSight) losTable = new LineOfSightTable(cat, boundingBox);
+
+        // Find the jackknife region footprints.
+        if(options.regions != null) voxelRegions = labelVoxels();
+
+        // Initialize the map array for the requested precision.
+        if(precision == Precision.MIXED){
+            floatMap = new float[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+        }else{
+            map = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+        }
+    }
+
+    /**
+     * Constructor for a view of a window of an existing map. The view shares the map arrays of the parent, so
+     * changes to either are visible in both.
+     *
+     * @param parent Map to view.
+     * @param window Voxel-aligned sub-box of the parent's bounding box.
+     */
+    AverageMap(AverageMap parent, Box window){
+        this.cat = parent.cat;
+        this.boundingBox = window;
+        this.numSamples = parent.numSamples;
+        this.options = parent.options;
+        this.precision = parent.precision;
+        this.map = parent.map;
+        this.floatMap = parent.floatMap;
 
-        // Initialize the double array.
-        map = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+        int offset[] = parent.boundingBox.voxelOffset(window);
+        this.i0 = parent.i0 + offset[0];
+        this.j0 = parent.j0 + offset[1];
+        this.k0 = parent.k0 + offset[2];
+        this.isView = true;
     }
 
     /**
-     * Creates the average map in parallel using sample drawing threads.
+     * Returns the average map value of a voxel regardless of the storage precision.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @return Average map value.
+     */
+    public double getValue(int i, int j, int k){
+        if(precision == Precision.MIXED) return floatMap[i + i0][j + j0][k + k0];
+        return map[i + i0][j + j0][k + k0];
+    }
+
+    /**
+     * Sets the average map value of a voxel regardless of the storage precision.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @param value New map value.
+     */
+    public void setValue(int i, int j, int k, double value){
+        if(precision == Precision.MIXED){
+            floatMap[i + i0][j + j0][k + k0] = (float) value;
+        }else{
+            map[i + i0][j + j0][k + k0] = value;
+        }
+    }
+
+    /**
+     * Creates the average map in parallel using sample drawing threads. Views cannot create their own map, since
+     * their values belong to the map they view.
      */
     public void createAverageMap(){
+        if(isView) throw new IllegalStateException("A view shares the map of its parent and cannot create its own.");
+
         // Get the number of cores.
         int numCores = Runtime.getRuntime().availableProcessors();
 
-        // Create and start all of the map threads.
-        Thread threads[] = new MapThread[numCores];
+        // Accumulate the leave-one-region-out maps alongside the main map if the galaxies carry region labels.
+        if(options.regions != null){
+            createJackknifeMaps(numCores);
+            return;
+        }
+
+        // MIXED threads flush their float partial sums into a single shared double sum, locked one x slice at a
+        // time.
+        int numVoxels = boundingBox.nx * boundingBox.ny * boundingBox.nz;
+        double mixedSum[] = null;
+        Object sliceLocks[] = null;
+        if(precision == Precision.MIXED && options.assignment == Assignment.NGP){
+            mixedSum = new double[numVoxels];
+            sliceLocks = new Object[boundingBox.nx];
+            for(int i = 0; i < boundingBox.nx; i++) sliceLocks[i] = new Object();
+        }
+
+        // Create and run all of the map threads.
+        MapThread threads[] = new MapThread[numCores];
         for(int i = 0; i < numCores; i++){
-            threads[i] = new MapThread(i,numCores);
-            threads[i].start();
+            if(options.assignment != Assignment.NGP){
+                threads[i] = new WeightedMapThread(i,numCores);
+            }else if(precision == Precision.MIXED){
+                threads[i] = new MixedMapThread(i,numCores,mixedSum,sliceLocks);
+            }else{
+                threads[i] = new MapThread(i,numCores);
+            }
+        }
+        runThreads(threads);
+
+        // Average the sums over the samples and add back the value every voxel takes when it is empty, which was
+        // left out of the sums so that each sample only visits the voxels it touched.
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    if(options.assignment != Assignment.NGP){
+                        // Reduce the weighted thread sums in double.
+                        double sum = 0;
+                        for(int t = 0; t < numCores; t++) sum += ((WeightedMapThread) threads[t]).sum[i][j][k];
+                        setValue(i, j, k, sum / numSamples + emptyValue(i,j,k));
+                    }else if(precision == Precision.MIXED){
+                        // Store the average of the shared double sum as a float.
+                        setValue(i, j, k, mixedSum[v] / numSamples + emptyValue(i,j,k));
+                    }else{
+                        map[i][j][k] = map[i][j][k] / numSamples + emptyValue(i,j,k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a set of threads and waits for all of them to finish. The first exception thrown by any of them is
+     * rethrown, so that a failed sample never leaves a partly averaged map behind silently.
+     *
+     * @param threads Threads to run.
+     */
+    static void runThreads(Thread threads[]){
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for(Thread thread : threads){
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
         }
 
         // Wait for all threads to finish.
-        for(int i = 0; i < numCores; i++){
+        for(Thread thread : threads){
             try {
-                threads[i].join();
+                thread.join();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
 
-        // Divide each element by the number of samples.j
+        Throwable e = failure.get();
+        if(e instanceof RuntimeException) throw (RuntimeException) e;
+        if(e instanceof Error) throw (Error) e;
+        if(e != null) throw new RuntimeException(e);
+    }
+
+    /**
+     * Returns the jackknife region of a direction. The ra is wrapped into [0, 360) first, so that galaxies and voxels
+     * are labelled alike whatever ra convention the catalog uses.
+     *
+     * @param ra Right ascension in degrees.
+     * @param dec Declination in degrees.
+     * @return Region given by the region function.
+     */
+    private int region(double ra, double dec){
+        ra %= 360;
+        if(ra < 0) ra += 360;
+        if(ra >= 360) ra -= 360;
+        return options.regions.region(ra, dec);
+    }
+
+    /**
+     * Assigns every voxel to the jackknife region of the direction of its center.
+     *
+     * @return Region of each voxel by flat index, or -1 for voxels outside every region.
+     */
+    private int[] labelVoxels(){
+        int labels[] = new int[boundingBox.nx * boundingBox.ny * boundingBox.nz];
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    double x = boundingBox.x0 + (i + 0.5) * boundingBox.voxLen;
+                    double y = boundingBox.y0 + (j + 0.5) * boundingBox.voxLen;
+                    double z = boundingBox.z0 + (k + 0.5) * boundingBox.voxLen;
+
+                    // Convert the direction to ra and dec.
+                    double ra = Math.toDegrees(Math.atan2(y, x));
+                    double dec = Math.toDegrees(Math.atan2(z, Math.hypot(x, y)));
+
+                    int r = region(ra, dec);
+                    labels[v] = r >= 0 && r < options.numRegions ? r : -1;
+                }
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Creates the average map together with the leave-one-region-out maps of every jackknife region in a single
+     * sampling pass. Each leave-one-out map drops both the galaxies and the footprint of its region: the region's
+     * voxels are left out of the sample normalization and masked with NaN.
+     *
+     * @param numCores Number of threads to use.
+     */
+    private void createJackknifeMaps(int numCores){
+        int numRegions = options.numRegions;
+
+        // Order the galaxies by region so that each sample's draws come out grouped by region. Galaxies outside every
+        // region go last and are never left out.
+        int galaxyRegions[] = new int[cat.gals.length];
+        int regionStart[] = new int[numRegions + 2];
+        for(int g = 0; g < cat.gals.length; g++){
+            int r = region(cat.gals[g].ra, cat.gals[g].dec);
+            if(r < -1 || r >= numRegions){
+                throw new IllegalArgumentException("Region " + r + " of galaxy " + g + " is not in [-1, " + numRegions
+                        + ").");
+            }
+            galaxyRegions[g] = r < 0 ? numRegions : r;
+            regionStart[galaxyRegions[g] + 1]++;
+        }
+        for(int r = 0; r <= numRegions; r++) regionStart[r + 1] += regionStart[r];
+        int regionOrder[] = new int[cat.gals.length];
+        int fill[] = regionStart.clone();
+        for(int g = 0; g < cat.gals.length; g++) regionOrder[fill[galaxyRegions[g]]++] = g;
+
+        // Sums shared by all threads, the main map first and then each leave-one-out map.
+        double sums[][][][] = new double[numRegions + 1][boundingBox.nx][boundingBox.ny][boundingBox.nz];
+
+        // Create and run all of the jackknife threads.
+        JackknifeThread threads[] = new JackknifeThread[numCores];
+        for(int t = 0; t < numCores; t++) threads[t] = new JackknifeThread(t, numCores, regionOrder, regionStart, sums);
+        runThreads(threads);
+
+        // Average the sums of the main map and of every leave-one-out map in place, add back the empty voxel values
+        // and mask the footprint of each left out region.
+        jackknifeMaps = new double[numRegions][][][];
+        System.arraycopy(sums, 1, jackknifeMaps, 0, numRegions);
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    double empty = emptyValue(i, j, k);
+                    setValue(i, j, k, sums[0][i][j][k] / numSamples + empty);
+
+                    for(int r = 0; r < numRegions; r++){
+                        double value = jackknifeMaps[r][i][j][k] / numSamples + empty;
+                        jackknifeMaps[r][i][j][k] = voxelRegions[v] == r ? Double.NaN : value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the average map created without the galaxies of one jackknife region. The voxels of the region are
+     * NaN.
+     *
+     * @param region Index of the left out region.
+     * @return Leave-one-out average map.
+     */
+    public double[][][] getJackknifeMap(int region){
+        if(jackknifeMaps == null) throw new IllegalStateException("The map was not created with jackknife regions.");
+        return jackknifeMaps[region];
+    }
+
+    /**
+     * Calculates the jackknife variance of every voxel, (n-1)/n * sum_r (m_r - mean)^2 over the n leave-one-out maps
+     * in which the voxel is defined, i.e. all but the map of its own region.
+     *
+     * @return Map of the jackknife variances.
+     */
+    public double[][][] jackknifeVariance(){
+        if(jackknifeMaps == null) throw new IllegalStateException("The map was not created with jackknife regions.");
+        int numRegions = jackknifeMaps.length;
+
+        double variance[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
         for(int i = 0; i < boundingBox.nx; i++){
             for(int j = 0; j < boundingBox.ny; j++){
                 for(int k = 0; k < boundingBox.nz; k++){
-                    map[i][j][k] /= numSamples;
+                    int n = 0;
+                    double mean = 0;
+                    for(int r = 0; r < numRegions; r++){
+                        if(Double.isNaN(jackknifeMaps[r][i][j][k])) continue;
+                        mean += jackknifeMaps[r][i][j][k];
+                        n++;
+                    }
+                    mean /= n;
+
+                    double sum = 0;
+                    for(int r = 0; r < numRegions; r++){
+                        if(Double.isNaN(jackknifeMaps[r][i][j][k])) continue;
+                        double d = jackknifeMaps[r][i][j][k] - mean;
+                        sum += d * d;
+                    }
+                    variance[i][j][k] = n > 0 ? (n - 1.0) / n * sum : Double.NaN;
+                }
+            }
+        }
+
+        return variance;
+    }
+
+    /**
+     * Calculates the jackknife covariance between a set of voxels, over the leave-one-out maps in which both voxels
+     * of a pair are defined. The full covariance of every voxel pair is rarely affordable, so the voxels of interest
+     * are chosen by the caller.
+     *
+     * @param voxels (i,j,k) indices of each voxel of interest.
+     * @return Covariance matrix of the voxels, in the order given.
+     */
+    public double[][] jackknifeCovariance(int voxels[][]){
+        if(jackknifeMaps == null) throw new IllegalStateException("The map was not created with jackknife regions.");
+        int numRegions = jackknifeMaps.length;
+        int n = voxels.length;
+
+        // Subtract the mean of the defined leave-one-out values of each voxel.
+        double residuals[][] = new double[n][numRegions];
+        for(int v = 0; v < n; v++){
+            int i = voxels[v][0], j = voxels[v][1], k = voxels[v][2];
+            int count = 0;
+            double mean = 0;
+            for(int r = 0; r < numRegions; r++){
+                if(Double.isNaN(jackknifeMaps[r][i][j][k])) continue;
+                mean += jackknifeMaps[r][i][j][k];
+                count++;
+            }
+            mean /= count;
+            for(int r = 0; r < numRegions; r++) residuals[v][r] = jackknifeMaps[r][i][j][k] - mean;
+        }
+
+        double cov[][] = new double[n][n];
+        for(int a = 0; a < n; a++){
+            for(int b = a; b < n; b++){
+                int count = 0;
+                double sum = 0;
+                for(int r = 0; r < numRegions; r++){
+                    if(Double.isNaN(residuals[a][r]) || Double.isNaN(residuals[b][r])) continue;
+                    sum += residuals[a][r] * residuals[b][r];
+                    count++;
                 }
+                cov[a][b] = cov[b][a] = count > 0 ? (count - 1.0) / count * sum : Double.NaN;
             }
         }
+
+        return cov;
     }
 
     /**
@@ -71,14 +442,223 @@ public abstract class AverageMap {
      */
     public abstract double[][][] drawMapSample();
 
+    /**
+     * Calculates the per-sample normalization of a set of raw galaxy counts, or of galaxy weights spread by CIC or
+     * TSC assignment. Only the touched voxels may hold a non-zero count.
+     *
+     * @param count Raw galaxy count or weight of the sample by flat voxel index, whatever array it is stored in.
+     * @param touched Flat indices of the voxels touched by the sample.
+     * @param numTouched Number of touched voxels.
+     * @param excludedRegion Jackknife region whose voxels are left out of the normalization, or -1 for none.
+     * @return Normalization passed to voxelValue for every voxel of the sample.
+     */
+    abstract double sampleNorm(IntToDoubleFunction count, int touched[], int numTouched, int excludedRegion);
+
+    /**
+     * Calculates the map value of a single voxel from its raw galaxy count, or its galaxy weight under CIC or TSC
+     * assignment.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @param count Raw galaxy count or weight of the voxel.
+     * @param norm Normalization returned by sampleNorm for the sample.
+     * @return Map sample value of the voxel.
+     */
+    abstract double voxelValue(int i, int j, int k, double count, double norm);
+
+    /**
+     * Calculates the map value of a voxel containing no galaxies. Must not depend upon the sample normalization.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @return Map sample value of an empty voxel.
+     */
+    abstract double emptyValue(int i, int j, int k);
+
+    /**
+     * Draws a Cartesian sample of every galaxy in the catalog and counts the samples falling in each voxel. The flat
+     * index ((a * ny) + b) * nz + c of every voxel that receives a galaxy is recorded in touched.
+     *
+     * @param counts Array of length nx * ny * nz to fill with the galaxy counts. Must be zeroed by the caller.
+     * @param touched Array of length at least maxTouched() to record the touched voxels in.
+     * @return Number of touched voxels.
+     */
+    int binSample(int counts[], int touched[]){
+        int numTouched = 0;
+        Random rand = ThreadLocalRandom.current();
+        for(int g = 0; g < cat.gals.length; g++){
+            int v = drawVoxel(cat, boundingBox, losTable, g, rand);
+            if(v < 0) continue;
+
+            // Record the voxel the first time it is touched.
+            if(counts[v]++ == 0) touched[numTouched++] = v;
+        }
+
+        return numTouched;
+    }
+
+    /**
+     * Same as binSample, with 16-bit counts as stored by MIXED precision.
+     *
+     * @param counts Array of length nx * ny * nz to fill with the galaxy counts. Must be zeroed by the caller.
+     * @param touched Array of length at least maxTouched() to record the touched voxels in.
+     * @return Number of touched voxels.
+     */
+    int binSample(char counts[], int touched[]){
+        int numTouched = 0;
+        Random rand = ThreadLocalRandom.current();
+        for(int g = 0; g < cat.gals.length; g++){
+            int v = drawVoxel(cat, boundingBox, losTable, g, rand);
+            if(v < 0) continue;
+
+            if(counts[v] == Character.MAX_VALUE){
+                throw new IllegalStateException("More than " + (int) Character.MAX_VALUE + " galaxies fell in one "
+                        + "voxel of a sample, which MIXED precision cannot count. Use Precision.DOUBLE.");
+            }
+
+            // Record the voxel the first time it is touched.
+            if(counts[v]++ == 0) touched[numTouched++] = v;
+        }
+
+        return numTouched;
+    }
+
+    /**
+     * Draws a sample of every galaxy in the catalog and spreads it over the voxels around it with the map's
+     * assignment scheme. The flat index of every voxel that receives a non-zero weight is recorded in touched.
+     *
+     * @param weights Array of length nx * ny * nz to add the galaxy weights to. Must be zeroed by the caller.
+     * @param touched Array of length at least maxTouched() to record the touched voxels in, or null.
+     * @return Number of touched voxels.
+     */
+    int scatterSample(double weights[], int touched[]){
+        int numTouched = 0;
+        Random rand = ThreadLocalRandom.current();
+        int ny = boundingBox.ny, nz = boundingBox.nz;
+        int size = options.assignment == Assignment.CIC ? 2 : 3;
+        double wx[] = new double[3], wy[] = new double[3], wz[] = new double[3];
+        for(int g = 0; g < cat.gals.length; g++){
+            if(options.assignment == Assignment.NGP){
+                // Nearest grid point counts the whole sample in its voxel.
+                int v = drawVoxel(cat, boundingBox, losTable, g, rand);
+                if(v < 0) continue;
+                if(weights[v] == 0 && touched != null) touched[numTouched++] = v;
+                weights[v] += 1;
+                continue;
+            }
+
+            // Find the stencil of the sample along each axis in units of voxels.
+            CartesianGalaxy cartSamp = cat.drawCartesianSample(g, rand);
+            int a0 = stencil((cartSamp.x - boundingBox.x0) / boundingBox.voxLen, wx);
+            int b0 = stencil((cartSamp.y - boundingBox.y0) / boundingBox.voxLen, wy);
+            int c0 = stencil((cartSamp.z - boundingBox.z0) / boundingBox.voxLen, wz);
+
+            // Add the weights of the stencil voxels inside the box.
+            for(int p = 0; p < size; p++){
+                int a = a0 + p;
+                if(a < 0 || a >= boundingBox.nx) continue;
+                for(int q = 0; q < size; q++){
+                    int b = b0 + q;
+                    if(b < 0 || b >= ny) continue;
+                    double wab = wx[p] * wy[q];
+                    for(int r = 0; r < size; r++){
+                        int c = c0 + r;
+                        double w = wab * wz[r];
+                        if(c < 0 || c >= nz || w == 0) continue;
+
+                        // Record the voxel the first time it is touched.
+                        int v = (a * ny + b) * nz + c;
+                        if(weights[v] == 0 && touched != null) touched[numTouched++] = v;
+                        weights[v] += w;
+                    }
+                }
+            }
+        }
+
+        return numTouched;
+    }
+
+    /**
+     * Calculates the one-dimensional CIC or TSC weights of a sample.
+     *
+     * @param u Position of the sample in units of voxels from the edge of the box.
+     * @param w Array of length 3 to store the weights of the stencil voxels in.
+     * @return Index of the first stencil voxel.
+     */
+    private int stencil(double u, double w[]){
+        if(options.assignment == Assignment.CIC){
+            // Split linearly between the two voxels whose centers bracket the sample.
+            int first = (int) Math.floor(u - 0.5);
+            double d = u - 0.5 - first;
+            w[0] = 1 - d;
+            w[1] = d;
+            return first;
+        }
+
+        // Spread quadratically over the nearest voxel and its two neighbours.
+        int nearest = (int) Math.floor(u);
+        double d = u - nearest - 0.5;
+        w[0] = 0.5 * (0.5 - d) * (0.5 - d);
+        w[1] = 0.75 - d * d;
+        w[2] = 0.5 * (0.5 + d) * (0.5 + d);
+        return nearest - 1;
+    }
+
+    /**
+     * Returns the largest number of voxels a single sample can touch, min(N * stencil size, nx * ny * nz). Bounds the
+     * touched voxel lists so that they never outgrow the grid however large the catalog is.
+     *
+     * @return Maximum number of touched voxels.
+     */
+    int maxTouched(){
+        int perGalaxy = options.assignment == Assignment.TSC ? 27 : options.assignment == Assignment.CIC ? 8 : 1;
+        long bound = Math.min((long) perGalaxy * cat.gals.length,
+                (long) boundingBox.nx * boundingBox.ny * boundingBox.nz);
+        return (int) bound;
+    }
+
+    /**
+     * Draws the voxel of a new sample of a galaxy, either from its line-of-sight table or from a Cartesian sample.
+     *
+     * @param cat Catalog of the galaxy.
+     * @param boundingBox Box of interest.
+     * @param losTable Line-of-sight table of the catalog for the box, or null to draw Cartesian samples.
+     * @param i Index of the galaxy.
+     * @param rand Random number generator.
+     * @return Flat voxel index ((a * ny) + b) * nz + c, or -1 if the sample falls outside of the box.
+     */
+    static int drawVoxel(Catalog cat, Box boundingBox, LineOfSightTable losTable, int i, Random rand){
+        // Draw the voxel directly from the galaxy's line-of-sight table.
+        if(losTable != null) return losTable.drawVoxel(i, rand.nextDouble());
+
+        // Draw a Cartesian sample for the current galaxy.
+        CartesianGalaxy cartSamp = cat.drawCartesianSample(i, rand);
+
+        // Calculate the index of the sampled point.
+        int a = (int) ((cartSamp.x - boundingBox.x0)/boundingBox.voxLen);
+        int b = (int) ((cartSamp.y - boundingBox.y0)/boundingBox.voxLen);
+        int c = (int) ((cartSamp.z - boundingBox.z0)/boundingBox.voxLen);
+
+        // Verify that the drawn point is within the box.
+        if(a < 0 || a >= boundingBox.nx || b < 0 || b >= boundingBox.ny || c < 0 || c >= boundingBox.nz) return -1;
+
+        return (a * boundingBox.ny + b) * boundingBox.nz + c;
+    }
+
     /**
      * <h1>Map Thread</h1>
-     * A thread class that draws new map samples in parallel and adds them to the average map array.
+     * A thread class that draws new map samples in parallel and adds them to the average map array. Only the voxels
+     * touched by each sample are visited, and the sums exclude the empty voxel values.
      */
     private class MapThread extends Thread{
         int id;
         int numWorkers;
-        double threadMap[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+
+        // Per-sample galaxy counts and touched voxels, by flat voxel index.
+        int counts[];
+        int touched[];
 
         public MapThread(int id, int numWorkers){
             this.id = id;
@@ -86,17 +666,23 @@ public abstract class AverageMap {
         }
 
         public void run(){
+            int ny = boundingBox.ny, nz = boundingBox.nz;
+            counts = new int[boundingBox.nx * ny * nz];
+            touched = new int[maxTouched()];
+            double threadMap[][][] = new double[boundingBox.nx][ny][nz];
+            IntToDoubleFunction count = v -> counts[v];
+
             for(int samp = id; samp < numSamples; samp += numWorkers){
-                // Draw a new sample.
-                double sample[][][] = drawMapSample();
+                // Draw the raw counts for a new sample and calculate its normalization.
+                int numTouched = binSample(counts, touched);
+                double norm = sampleNorm(count, touched, numTouched, -1);
 
-                // Add sample values to the thread's average map.
-                for(int i = 0; i < boundingBox.nx; i++){
-                    for(int j = 0; j < boundingBox.ny; j++){
-                        for(int k = 0; k < boundingBox.nz; k++){
-                            threadMap[i][j][k] += sample[i][j][k];
-                        }
-                    }
+                // Add the touched voxel values relative to the empty value to the thread's map and reset the counts.
+                for(int n = 0; n < numTouched; n++){
+                    int v = touched[n];
+                    int i = v / (ny * nz), j = (v / nz) % ny, k = v % nz;
+                    threadMap[i][j][k] += voxelValue(i, j, k, counts[v], norm) - emptyValue(i, j, k);
+                    counts[v] = 0;
                 }
             }
 
@@ -112,4 +698,235 @@ public abstract class AverageMap {
             }
         }
     }
+
+    /**
+     * <h1>Mixed Map Thread</h1>
+     * A map thread that counts the galaxies of each sample in 16 bits and accumulates the samples into float partial
+     * sums. Every FLUSH_SAMPLES samples the partial sums are added to the shared double sum and cleared, so no float
+     * sum ever holds more than a short run of samples. Only the voxels touched since the last flush are visited, so a
+     * flush costs as much as the samples it covers rather than the whole grid. Per voxel this takes 6 bytes per thread
+     * instead of the 12 of a DOUBLE thread, plus the list of voxels touched since the last flush.
+     */
+    private class MixedMapThread extends MapThread{
+        // Number of samples accumulated in float before flushing to the shared sum.
+        static final int FLUSH_SAMPLES = 32;
+
+        // Shared double sum and the locks of its x slices.
+        final double mixedSum[];
+        final Object sliceLocks[];
+
+        // Float partial sums of the samples drawn since the last flush.
+        float sum[];
+
+        // Voxels with a partial sum, in the order they were first touched since the last flush.
+        int dirty[];
+        int numDirty;
+
+        public MixedMapThread(int id, int numWorkers, double mixedSum[], Object sliceLocks[]){
+            super(id, numWorkers);
+            this.mixedSum = mixedSum;
+            this.sliceLocks = sliceLocks;
+        }
+
+        @Override
+        public void run(){
+            int ny = boundingBox.ny, nz = boundingBox.nz;
+            char counts[] = new char[boundingBox.nx * ny * nz];
+            touched = new int[maxTouched()];
+            sum = new float[counts.length];
+            dirty = new int[(int) Math.min((long) FLUSH_SAMPLES * touched.length, counts.length)];
+            IntToDoubleFunction count = v -> counts[v];
+
+            int numPending = 0;
+            for(int samp = id; samp < numSamples; samp += numWorkers){
+                // Draw the raw counts for a new sample and calculate its normalization.
+                int numTouched = binSample(counts, touched);
+                double norm = sampleNorm(count, touched, numTouched, -1);
+
+                // Make room for every touched voxel in the dirty list.
+                if(numDirty + numTouched > dirty.length){
+                    flush();
+                    numPending = 0;
+                }
+
+                // Add the touched voxel values to the partial sums and reset the counts for the next sample. A touched
+                // voxel always adds a non-zero value, so a zero partial sum marks a voxel not yet in the dirty list.
+                for(int n = 0; n < numTouched; n++){
+                    int v = touched[n];
+                    int i = v / (ny * nz), j = (v / nz) % ny, k = v % nz;
+                    if(sum[v] == 0) dirty[numDirty++] = v;
+                    sum[v] += (float) (voxelValue(i, j, k, counts[v], norm) - emptyValue(i, j, k));
+                    counts[v] = 0;
+                }
+
+                if(++numPending == FLUSH_SAMPLES){
+                    flush();
+                    numPending = 0;
+                }
+            }
+            if(numDirty > 0) flush();
+        }
+
+        /**
+         * Adds the partial sums of the dirty voxels to the shared double sum and clears them.
+         */
+        private void flush(){
+            // Sort the dirty voxels so that each x slice is locked once.
+            Arrays.sort(dirty, 0, numDirty);
+
+            int sliceSize = boundingBox.ny * boundingBox.nz;
+            for(int n = 0; n < numDirty;){
+                int i = dirty[n] / sliceSize;
+                synchronized (sliceLocks[i]){
+                    for(; n < numDirty && dirty[n] / sliceSize == i; n++){
+                        int v = dirty[n];
+                        mixedSum[v] += sum[v];
+                        sum[v] = 0;
+                    }
+                }
+            }
+            numDirty = 0;
+        }
+    }
+
+    /**
+     * <h1>Jackknife Thread</h1>
+     * A map thread that also accumulates the leave-one-region-out samples. After the full sample is added, the draws
+     * of each region are taken out of the counts in turn, the sample is renormalized without them and without the
+     * region's voxels, its other touched voxel values are added to the sums of that region, and the draws are put
+     * back. The sums are shared by all threads, each locked on its own while a sample is merged into it.
+     */
+    private class JackknifeThread extends MapThread{
+        // Galaxies ordered by region, those of region r being regionOrder[regionStart[r]] to regionStart[r+1]-1.
+        // The last group holds the galaxies outside every region.
+        final int regionOrder[];
+        final int regionStart[];
+
+        // Shared sums of the main map and of each leave-one-out map.
+        final double sums[][][][];
+
+        // Values of the touched voxels of the sample being merged.
+        double values[];
+
+        public JackknifeThread(int id, int numWorkers, int regionOrder[], int regionStart[], double sums[][][][]){
+            super(id, numWorkers);
+            this.regionOrder = regionOrder;
+            this.regionStart = regionStart;
+            this.sums = sums;
+        }
+
+        @Override
+        public void run(){
+            int numRegions = sums.length - 1;
+            counts = new int[boundingBox.nx * boundingBox.ny * boundingBox.nz];
+            touched = new int[maxTouched()];
+            values = new double[touched.length];
+            IntToDoubleFunction count = v -> counts[v];
+
+            // Flat voxel of every in-box draw of the sample, grouped by region, and the end of each region's draws.
+            int draws[] = new int[cat.gals.length];
+            int drawEnd[] = new int[numRegions + 1];
+            Random rand = ThreadLocalRandom.current();
+
+            for(int samp = id; samp < numSamples; samp += numWorkers){
+                // Draw the raw counts for a new sample, region by region.
+                int numTouched = 0, numDraws = 0;
+                for(int r = 0; r <= numRegions; r++){
+                    for(int n = regionStart[r]; n < regionStart[r + 1]; n++){
+                        int v = drawVoxel(cat, boundingBox, losTable, regionOrder[n], rand);
+                        if(v < 0) continue;
+                        draws[numDraws++] = v;
+
+                        // Record the voxel the first time it is touched.
+                        if(counts[v]++ == 0) touched[numTouched++] = v;
+                    }
+                    drawEnd[r] = numDraws;
+                }
+
+                // Add the full sample.
+                addSample(sums[0], count, numTouched, -1);
+
+                // Add the sample without each region's draws, starting from a different region in each thread so that
+                // the threads rarely wait on the same sums.
+                for(int q = 0; q < numRegions; q++){
+                    int r = (q + id) % numRegions;
+                    int first = r == 0 ? 0 : drawEnd[r - 1];
+                    for(int d = first; d < drawEnd[r]; d++) counts[draws[d]]--;
+                    addSample(sums[r + 1], count, numTouched, r);
+                    for(int d = first; d < drawEnd[r]; d++) counts[draws[d]]++;
+                }
+
+                // Reset the counts for the next sample.
+                for(int n = 0; n < numTouched; n++) counts[touched[n]] = 0;
+            }
+        }
+
+        /**
+         * Normalizes the current counts and adds the touched voxel values relative to the empty value to a shared
+         * sum. The voxels of the excluded region are skipped, since they are masked in the final map.
+         *
+         * @param target Shared sum to add to.
+         * @param count Accessor of the current counts.
+         * @param numTouched Number of touched voxels.
+         * @param excludedRegion Left out jackknife region, or -1 for none.
+         */
+        private void addSample(double target[][][], IntToDoubleFunction count, int numTouched, int excludedRegion){
+            int ny = boundingBox.ny, nz = boundingBox.nz;
+            double norm = sampleNorm(count, touched, numTouched, excludedRegion);
+
+            // Evaluate the values before taking the lock.
+            for(int n = 0; n < numTouched; n++){
+                int v = touched[n];
+                if(excludedRegion >= 0 && voxelRegions[v] == excludedRegion){
+                    values[n] = 0;
+                    continue;
+                }
+                int i = v / (ny * nz), j = (v / nz) % ny, k = v % nz;
+                values[n] = voxelValue(i, j, k, counts[v], norm) - emptyValue(i, j, k);
+            }
+
+            synchronized (target){
+                for(int n = 0; n < numTouched; n++){
+                    int v = touched[n];
+                    target[v / (ny * nz)][(v / nz) % ny][v % nz] += values[n];
+                }
+            }
+        }
+    }
+
+    /**
+     * <h1>Weighted Map Thread</h1>
+     * A map thread that spreads the samples with CIC or TSC assignment. Each thread scatters into its own weight
+     * array, so concurrent samples never write to the same voxel and no atomics are needed. The weights and sums are
+     * kept in double for either precision and reduced into the average map once all threads have finished.
+     */
+    private class WeightedMapThread extends MapThread{
+        double sum[][][];
+
+        public WeightedMapThread(int id, int numWorkers){
+            super(id, numWorkers);
+        }
+
+        @Override
+        public void run(){
+            int ny = boundingBox.ny, nz = boundingBox.nz;
+            double weights[] = new double[boundingBox.nx * ny * nz];
+            touched = new int[maxTouched()];
+            sum = new double[boundingBox.nx][ny][nz];
+
+            for(int samp = id; samp < numSamples; samp += numWorkers){
+                // Spread a new sample over the voxels and calculate its normalization.
+                int numTouched = scatterSample(weights, touched);
+                double norm = sampleNorm(v -> weights[v], touched, numTouched, -1);
+
+                // Add the touched voxel values relative to the empty value to the sums and reset the weights.
+                for(int n = 0; n < numTouched; n++){
+                    int v = touched[n];
+                    int i = v / (ny * nz), j = (v / nz) % ny, k = v % nz;
+                    sum[i][j][k] += voxelValue(i, j, k, weights[v], norm) - emptyValue(i, j, k);
+                    weights[v] = 0;
+                }
+            }
+        }
+    }
 }
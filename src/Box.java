@@ -31,4 +31,46 @@ public class Box {
         this.nz = nz;
         this.voxLen = voxLen;
     }
+
+    /**
+     * Returns the smallest voxel-aligned window of this box that covers the given region, clipped to this box.
+     *
+     * @param region Box covering the region of interest.
+     * @return Window of this box with the same voxel length.
+     */
+    public Box window(Box region){
+        int i0 = Math.max(0, (int) Math.floor((region.x0 - x0) / voxLen));
+        int j0 = Math.max(0, (int) Math.floor((region.y0 - y0) / voxLen));
+        int k0 = Math.max(0, (int) Math.floor((region.z0 - z0) / voxLen));
+        int i1 = Math.min(nx, (int) Math.ceil((region.x0 + region.nx * region.voxLen - x0) / voxLen));
+        int j1 = Math.min(ny, (int) Math.ceil((region.y0 + region.ny * region.voxLen - y0) / voxLen));
+        int k1 = Math.min(nz, (int) Math.ceil((region.z0 + region.nz * region.voxLen - z0) / voxLen));
+
+        return new Box(x0 + i0 * voxLen, y0 + j0 * voxLen, z0 + k0 * voxLen,
+                Math.max(0, i1 - i0), Math.max(0, j1 - j0), Math.max(0, k1 - k0), voxLen);
+    }
+
+    /**
+     * Returns the voxel offset of a window inside this box.
+     *
+     * @param window Voxel-aligned box contained in this box.
+     * @return Offsets {i0, j0, k0} of the window's first voxel.
+     */
+    public int[] voxelOffset(Box window){
+        int offset[] = {(int) Math.round((window.x0 - x0) / voxLen), (int) Math.round((window.y0 - y0) / voxLen),
+                (int) Math.round((window.z0 - z0) / voxLen)};
+
+        // Verify that the window is aligned with and contained in the box.
+        boolean aligned = window.voxLen == voxLen
+                && Math.abs(x0 + offset[0] * voxLen - window.x0) < 1e-6 * voxLen
+                && Math.abs(y0 + offset[1] * voxLen - window.y0) < 1e-6 * voxLen
+                && Math.abs(z0 + offset[2] * voxLen - window.z0) < 1e-6 * voxLen;
+        boolean contained = offset[0] >= 0 && offset[1] >= 0 && offset[2] >= 0 && offset[0] + window.nx <= nx
+                && offset[1] + window.ny <= ny && offset[2] + window.nz <= nz;
+        if(!aligned || !contained){
+            throw new IllegalArgumentException("Window is not an aligned sub-box of the box.");
+        }
+
+        return offset;
+    }
 }
@@ -1,3 +1,5 @@
+import org.apache.commons.math3.special.Erf;
+
 import java.util.Random;
 
 /**
@@ -14,9 +16,15 @@ public class Catalog {
     final Galaxy gals[];
     final CartesianGalaxy cartNorms[];
 
+    // Binned photo-z PDFs of the galaxies, or null if the redshifts are Gaussian (zPhoto +/- zErr).
+    final PhotoZPdf pdfs;
+
     // Random number generator for the class.
     Random rand = new Random();
 
+    // Number of galaxies per task when creating the normals in parallel.
+    private static final int NORMS_BLOCK = 65536;
+
     /**
      * Constructor
      *
@@ -24,8 +32,24 @@ public class Catalog {
      * @param cosmo Cosmology object.
      */
     public Catalog(Galaxy gals[], Cosmology cosmo){
+        this(gals, (PhotoZPdf) null, cosmo);
+    }
+
+    /**
+     * Constructor for galaxies with binned photo-z PDFs. Redshifts are drawn from the PDFs instead of a Gaussian.
+     *
+     * @param gals Array of Galaxy objects.
+     * @param pdfs Binned photo-z PDF of each galaxy, or null for Gaussian redshifts.
+     * @param cosmo Cosmology object.
+     */
+    public Catalog(Galaxy gals[], PhotoZPdf pdfs, Cosmology cosmo){
+        if(pdfs != null && pdfs.numGals != gals.length){
+            throw new IllegalArgumentException("Number of PDFs does not match the number of galaxies.");
+        }
+
         this.cosmo = cosmo;
         this.gals = gals;
+        this.pdfs = pdfs;
 
         // Initialize the normals and samples arrays.
         cartNorms = new CartesianGalaxy[gals.length];
@@ -34,23 +58,73 @@ public class Catalog {
         createNorms();
     }
 
+    /**
+     * Constructor for galaxies whose normals have already been calculated (e.g. read from a CatalogCache).
+     *
+     * @param gals Array of Galaxy objects.
+     * @param cartNorms Unit normal vector of each galaxy.
+     * @param cosmo Cosmology object.
+     */
+    Catalog(Galaxy gals[], CartesianGalaxy cartNorms[], Cosmology cosmo){
+        this(gals, cartNorms, null, cosmo);
+    }
+
+    /**
+     * Constructor for galaxies whose normals have already been calculated.
+     *
+     * @param gals Array of Galaxy objects.
+     * @param cartNorms Unit normal vector of each galaxy.
+     * @param pdfs Binned photo-z PDF of each galaxy, or null for Gaussian redshifts.
+     * @param cosmo Cosmology object.
+     */
+    Catalog(Galaxy gals[], CartesianGalaxy cartNorms[], PhotoZPdf pdfs, Cosmology cosmo){
+        this.cosmo = cosmo;
+        this.gals = gals;
+        this.cartNorms = cartNorms;
+        this.pdfs = pdfs;
+    }
+
+    /**
+     * Creates a catalog over a subset of the galaxies, e.g. the result of an AngularIndex query. The view shares the
+     * Galaxy and CartesianGalaxy objects and the cosmology of this catalog. The PDFs, if any, are copied.
+     *
+     * @param ids Indices of the galaxies to include.
+     * @return Catalog over the selected galaxies.
+     */
+    public Catalog view(int ids[]){
+        Galaxy viewGals[] = new Galaxy[ids.length];
+        CartesianGalaxy viewNorms[] = new CartesianGalaxy[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            viewGals[i] = gals[ids[i]];
+            viewNorms[i] = cartNorms[ids[i]];
+        }
+
+        return new Catalog(viewGals, viewNorms, pdfs == null ? null : pdfs.subset(ids), cosmo);
+    }
+
     /**
      * Calculate the components of the normal vector for each of the galaxies.
      */
     private void createNorms(){
-        for(int i = 0; i < gals.length; i++){
-            // Convert ra and dec into phi and theta (physics spherical coordinates).
-            double phi = (Math.PI / 180.0) * gals[i].ra;
-            double theta = Math.PI / 2.0 - (Math.PI / 180.0) * gals[i].dec;
-
-            // Calculate the normal components.
-            double x = Math.sin(theta) * Math.cos(phi);
-            double y = Math.sin(theta) * Math.sin(phi);
-            double z = Math.cos(theta);
-
-            // Create the CartesianGalaxy object.
-            cartNorms[i] = new CartesianGalaxy(x,y,z);
-        }
+        // Split the catalog into blocks large enough to be worth a thread each.
+        int numBlocks = (gals.length + NORMS_BLOCK - 1) / NORMS_BLOCK;
+        GridMath.parallelFor(numBlocks, block -> {
+            int last = Math.min(gals.length, (block + 1) * NORMS_BLOCK);
+            for(int i = block * NORMS_BLOCK; i < last; i++){
+                // Convert ra and dec into phi and theta (physics spherical coordinates).
+                double phi = (Math.PI / 180.0) * gals[i].ra;
+                double theta = Math.PI / 2.0 - (Math.PI / 180.0) * gals[i].dec;
+
+                // Calculate the normal components.
+                double sinTheta = Math.sin(theta);
+                double x = sinTheta * Math.cos(phi);
+                double y = sinTheta * Math.sin(phi);
+                double z = Math.cos(theta);
+
+                // Create the CartesianGalaxy object.
+                cartNorms[i] = new CartesianGalaxy(x,y,z);
+            }
+        });
     }
 
 
@@ -61,13 +135,25 @@ public class Catalog {
      * @return CartesianGalaxy object containing the cooridnates of the redshift sample.
      */
     public CartesianGalaxy drawCartesianSample(int id){
+        return drawCartesianSample(id, rand);
+    }
+
+    /**
+     * Draw a new Cartesian redshift sample for the galaxy with the given id using the given random number generator.
+     * Returns null for invalid id.
+     *
+     * @param id Index of the galaxy of interest.
+     * @param rand Random number generator to draw the redshift with.
+     * @return CartesianGalaxy object containing the cooridnates of the redshift sample.
+     */
+    public CartesianGalaxy drawCartesianSample(int id, Random rand){
         // Verify that the id is valid.
         if(id < 0 || id >= gals.length){
             return null;
         }
 
         // Draw a new redshift sample.
-        double zSamp = gals[id].zPhoto + gals[id].zErr * rand.nextGaussian();
+        double zSamp = drawRedshift(id, rand);
 
         // Calculate the comoving distance of the sample.
         double comDist = cosmo.comovingDist(zSamp);
@@ -81,7 +167,50 @@ public class Catalog {
     }
 
     /**
-     * Create a box that completely contains all points inside of the catalog +/- 5 sigma.
+     * Draw a new redshift sample for the galaxy with the given id, from its PDF if the catalog has them and from a
+     * Gaussian otherwise.
+     *
+     * @param id Index of the galaxy of interest.
+     * @param rand Random number generator to draw the redshift with.
+     * @return Redshift sample.
+     */
+    public double drawRedshift(int id, Random rand){
+        if(pdfs != null) return pdfs.drawRedshift(id, rand);
+        return gals[id].zPhoto + gals[id].zErr * rand.nextGaussian();
+    }
+
+    /**
+     * Probability that a redshift sample of the galaxy with the given id lies below z.
+     *
+     * @param id Index of the galaxy of interest.
+     * @param z Redshift.
+     * @return Cumulative probability.
+     */
+    public double redshiftCdf(int id, double z){
+        if(pdfs != null) return pdfs.cdf(id, z);
+        return 0.5 * (1 + Erf.erf((z - gals[id].zPhoto) / (gals[id].zErr * Math.sqrt(2))));
+    }
+
+    /**
+     * Returns the range of comoving distances the redshift samples of a galaxy can reach: +/- 5 sigma of the
+     * photo-z for Gaussian redshifts and the non-empty bins of the PDF otherwise.
+     *
+     * @param id Index of the galaxy of interest.
+     * @return Closest and farthest comoving distance.
+     */
+    public double[] distanceRange(int id){
+        if(pdfs != null){
+            return new double[]{cosmo.comovingDist(pdfs.minRedshift(id)), cosmo.comovingDist(pdfs.maxRedshift(id))};
+        }
+
+        // Get the comoving distance and comoving distance error for the photo-z value.
+        double photoR = cosmo.comovingDist(gals[id].zPhoto);
+        double rErr = cosmo.comDistErr(gals[id].zPhoto, gals[id].zErr);
+        return new double[]{photoR - 5 * rErr, photoR + 5 * rErr};
+    }
+
+    /**
+     * Create a box that completely contains all points inside of the catalog +/- 5 sigma (or the PDF support).
      *
      * @param voxLen Length of each side of the voxel.
      * @return Box object that contains all points in the catalog +/- 5 sigma.
@@ -98,12 +227,11 @@ public class Catalog {
 
         // Loop through each galaxy and update the bounds as necessary.
         for(int i = 0; i < cartNorms.length; i++){
-            // Get the comoving distance and comoving distance error for the photo-z value.
-            double photoR = cosmo.comovingDist(gals[i].zPhoto);
-            double rErr = cosmo.comDistErr(gals[i].zPhoto, gals[i].zErr);
+            // Get the range of comoving distances of the galaxy.
+            double range[] = distanceRange(i);
 
-            // Calculate the x,y,z cooridnates for 5 sigma from photo-z inwards.
-            double closeR = photoR - 5 * rErr;
+            // Calculate the x,y,z cooridnates for the closest reachable distance.
+            double closeR = range[0];
             double closeX = closeR * cartNorms[i].x;
             double closeY = closeR * cartNorms[i].y;
             double closeZ = closeR * cartNorms[i].z;
@@ -117,8 +245,8 @@ public class Catalog {
             if(closeY > maxY) maxY = closeY;
             if(closeZ > maxZ) maxZ = closeZ;
 
-            // Calculate the x,y,z cooridnates for 5 sigma from photo-z outwards.
-            double farR = photoR + 5 * rErr;
+            // Calculate the x,y,z cooridnates for the farthest reachable distance.
+            double farR = range[1];
             double farX = farR * cartNorms[i].x;
             double farY = farR * cartNorms[i].y;
             double farZ = farR * cartNorms[i].z;
@@ -0,0 +1,212 @@
+import nom.tam.fits.FitsException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * <h1>Catalog Cache</h1>
+ * Persists catalogs in a columnar binary format next to their source fit file so that later runs can skip the fit
+ * decoding and the normal vector calculation. The cache holds the ra, dec, zSpec, zPhoto, zErr and unit normal
+ * columns as doubles and is memory-mapped read-only when loaded. Catalog holds one Galaxy and one CartesianGalaxy
+ * object per galaxy, so those are still built from the mapped columns, in parallel blocks; a load skips the fit
+ * decoding, the copy of the columns onto the heap and the normal calculation. Catalogs with photo-z PDFs are not
+ * supported.
+ *
+ * The cache is tied to its source by a checksum of the source length, modification time and its first and last
+ * blocks, and is rebuilt whenever the checksum does not match. Hashing the whole source on every load would cost as
+ * much as reading it, so an edit confined to the middle of the file that keeps its length and modification time is
+ * not detected; delete the cache after such an edit.
+ */
+public class CatalogCache {
+    // File format identification.
+    private static final long MAGIC = 0x4153544341543031L; // "ASTCAT01"
+    private static final int HEADER_BYTES = 8 + 8 + 4 + 4;
+
+    // Number of double columns in the cache.
+    private static final int NUM_COLUMNS = 8;
+
+    // Size of the blocks at the start and end of the source file included in the checksum.
+    private static final int CHECKSUM_BLOCK = 1 << 16;
+
+    // Number of galaxies built from the mapped columns per task.
+    private static final int READ_BLOCK = 65536;
+
+    /**
+     * Loads a catalog, reading it from the cache when it is valid and creating the cache otherwise.
+     *
+     * @param fname Fit file of the catalog.
+     * @param randoms Whether the file is a randoms catalog.
+     * @param cosmo Cosmology object.
+     * @return Catalog object.
+     * @throws FitsException
+     * @throws IOException
+     */
+    public static Catalog load(String fname, boolean randoms, Cosmology cosmo) throws FitsException, IOException {
+        File cacheFile = new File(fname + (randoms ? ".rands.cat" : ".gals.cat"));
+        long checksum = sourceChecksum(new File(fname));
+
+        // Use the cache if it matches the source.
+        if(cacheFile.exists()){
+            Catalog cat = read(cacheFile, checksum, cosmo);
+            if(cat != null) return cat;
+        }
+
+        // Load the fit file and write a new cache.
+        Galaxy gals[] = randoms ? DataHandler.loadRandoms(fname) : DataHandler.loadGals(fname);
+        Catalog cat = new Catalog(gals, cosmo);
+        try {
+            write(cat, cacheFile, checksum);
+        } catch (IOException e) {
+            System.out.println("Unable to write catalog cache " + cacheFile + ": " + e.getMessage());
+        }
+
+        return cat;
+    }
+
+    /**
+     * Calculates the checksum tying a cache to its source file.
+     *
+     * @param source Source fit file.
+     * @return Checksum.
+     * @throws IOException
+     */
+    static long sourceChecksum(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        try(RandomAccessFile file = new RandomAccessFile(source, "r")){
+            long length = file.length();
+            ByteBuffer meta = ByteBuffer.allocate(16);
+            meta.putLong(length).putLong(source.lastModified());
+            crc.update(meta.array());
+
+            // Include the first and last blocks of the file.
+            byte block[] = new byte[(int) Math.min(CHECKSUM_BLOCK, length)];
+            file.readFully(block);
+            crc.update(block);
+            file.seek(length - block.length);
+            file.readFully(block);
+            crc.update(block);
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a catalog from a cache file.
+     *
+     * @param cacheFile Cache file.
+     * @param checksum Expected source checksum.
+     * @param cosmo Cosmology object.
+     * @return Catalog object, or null if the cache is invalid or stale.
+     * @throws IOException
+     */
+    static Catalog read(File cacheFile, long checksum, Cosmology cosmo) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(cacheFile, "r")){
+            FileChannel channel = file.getChannel();
+            if(channel.size() < HEADER_BYTES) return null;
+
+            // Verify the header.
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if(header.getLong() != MAGIC || header.getLong() != checksum || header.getInt() != NUM_COLUMNS) return null;
+            int count = header.getInt();
+            if(channel.size() != HEADER_BYTES + (long) NUM_COLUMNS * count * 8) return null;
+
+            // Map each column.
+            DoubleBuffer columns[] = new DoubleBuffer[NUM_COLUMNS];
+            for(int c = 0; c < NUM_COLUMNS; c++){
+                long start = HEADER_BYTES + (long) c * count * 8;
+                columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) count * 8).asDoubleBuffer();
+            }
+
+            // Create the galaxies and normals straight from the mapped columns, one block per task. The buffers are
+            // only read with absolute gets, so the tasks can share them.
+            Galaxy gals[] = new Galaxy[count];
+            CartesianGalaxy cartNorms[] = new CartesianGalaxy[count];
+            int numBlocks = (count + READ_BLOCK - 1) / READ_BLOCK;
+            GridMath.parallelFor(numBlocks, block -> {
+                int last = Math.min(count, (block + 1) * READ_BLOCK);
+                for(int i = block * READ_BLOCK; i < last; i++){
+                    gals[i] = new Galaxy(columns[0].get(i), columns[1].get(i), columns[2].get(i), columns[3].get(i),
+                            columns[4].get(i));
+                    cartNorms[i] = new CartesianGalaxy(columns[5].get(i), columns[6].get(i), columns[7].get(i));
+                }
+            });
+
+            return new Catalog(gals, cartNorms, cosmo);
+        }
+    }
+
+    /**
+     * Writes a catalog to a cache file. The file is written under a unique temporary name in the same directory and
+     * moved into place, so concurrent writers of the same cache never share a file. Catalogs with photo-z PDFs are
+     * rejected, since the cache has no PDF columns.
+     *
+     * @param cat Catalog to write.
+     * @param cacheFile Cache file.
+     * @param checksum Source checksum.
+     * @throws IOException
+     */
+    static void write(Catalog cat, File cacheFile, long checksum) throws IOException {
+        if(cat.pdfs != null) throw new IllegalArgumentException("Catalogs with photo-z PDFs cannot be cached.");
+
+        int count = cat.gals.length;
+        Path tmpPath = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), cacheFile.getName(),
+                ".tmp");
+
+        try(RandomAccessFile file = new RandomAccessFile(tmpPath.toFile(), "rw")){
+            long length = HEADER_BYTES + (long) NUM_COLUMNS * count * 8;
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+
+            // Write the header.
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putLong(MAGIC).putLong(checksum).putInt(NUM_COLUMNS).putInt(count);
+            header.force();
+
+            // Write each column.
+            for(int c = 0; c < NUM_COLUMNS; c++){
+                long start = HEADER_BYTES + (long) c * count * 8;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) count * 8);
+                DoubleBuffer column = buffer.asDoubleBuffer();
+                for(int i = 0; i < count; i++){
+                    column.put(i, columnValue(cat, c, i));
+                }
+                buffer.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+
+        Files.move(tmpPath, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the value of a cache column for one galaxy.
+     *
+     * @param cat Catalog.
+     * @param c Column index.
+     * @param i Galaxy index.
+     * @return Column value.
+     */
+    private static double columnValue(Catalog cat, int c, int i){
+        switch(c){
+            case 0: return cat.gals[i].ra;
+            case 1: return cat.gals[i].dec;
+            case 2: return cat.gals[i].zSpec;
+            case 3: return cat.gals[i].zPhoto;
+            case 4: return cat.gals[i].zErr;
+            case 5: return cat.cartNorms[i].x;
+            case 6: return cat.cartNorms[i].y;
+            default: return cat.cartNorms[i].z;
+        }
+    }
+}
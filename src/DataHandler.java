@@ -67,4 +67,39 @@ public class DataHandler {
 
         return gals;
     }
+
+    /**
+     * Reads the binned photo-z PDF of every row from an array column of a fit file. All PDFs share the redshift grid
+     * from zMin to zMax, split into as many bins as the array has elements.
+     *
+     * @param fname Filename to read from.
+     * @param column Index of the PDF array column.
+     * @param zMin Lower edge of the first redshift bin.
+     * @param zMax Upper edge of the last redshift bin.
+     * @return PhotoZPdf object.
+     * @throws FitsException
+     * @throws IOException
+     */
+    public static PhotoZPdf loadPhotoZPdfs(String fname, int column, double zMin, double zMax)
+            throws FitsException, IOException {
+        // Open the file.
+        Fits f = new Fits(fname);
+
+        // Load the data, converting double precision columns to float.
+        TableHDU tab = (TableHDU) f.getHDU(1);
+        Object data = tab.getColumn(column);
+        float pdfs[][];
+        if(data instanceof float[][]){
+            pdfs = (float[][]) data;
+        }else{
+            double values[][] = (double[][]) data;
+            pdfs = new float[values.length][];
+            for(int i = 0; i < values.length; i++){
+                pdfs[i] = new float[values[i].length];
+                for(int j = 0; j < values[i].length; j++) pdfs[i][j] = (float) values[i][j];
+            }
+        }
+
+        return new PhotoZPdf(zMin, zMax, pdfs);
+    }
 }
@@ -1,6 +1,8 @@
 import org.apache.commons.math3.fitting.GaussianCurveFitter;
 import org.apache.commons.math3.fitting.WeightedObservedPoints;
 
+import java.util.function.IntToDoubleFunction;
+
 /**
  * <h1>Density Map</h1>
  * Average density map calculated in parallel using regularization.
@@ -10,6 +12,12 @@ import org.apache.commons.math3.fitting.WeightedObservedPoints;
 public class DensityMap extends AverageMap{
     OccupancyMap fMap;
 
+    // Number of contributing voxels, used to calculate the expected number counts.
+    int numContributors;
+
+    // Number of those voxels in each jackknife region, if the map was created with jackknife regions.
+    int regionContributors[];
+
     /**
      * Constructor
      *
@@ -19,56 +27,104 @@ public class DensityMap extends AverageMap{
      * @param fMap        OccupancyMap containing the percent occupancy of each voxel in boundingBox.
      */
     public DensityMap(Catalog cat, Box boundingBox, int numSamples, OccupancyMap fMap) {
-        super(cat, boundingBox, numSamples);
-        this.fMap = fMap;
+        this(cat, boundingBox, numSamples, fMap, Precision.DOUBLE);
+    }
 
-        super.createAverageMap();
+    /**
+     * Constructor
+     *
+     * @param cat         Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param fMap        OccupancyMap containing the percent occupancy of each voxel in boundingBox.
+     * @param precision   Storage precision of the samples and the average map.
+     */
+    public DensityMap(Catalog cat, Box boundingBox, int numSamples, OccupancyMap fMap, Precision precision) {
+        this(cat, boundingBox, numSamples, fMap, new MapOptions().precision(precision));
     }
 
-    @Override
-    public double[][][] drawMapSample() {
-        // Add each galaxy to a voxel.
-        double N[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
-        for(int i = 0; i < cat.gals.length; i++){
-            // Draw a Cartesian sample for the current galaxy.
-            CartesianGalaxy cartSamp = cat.drawCartesianSample(i);
-
-            // Calculate the index of the sampled point.
-            int a = (int) ((cartSamp.x - boundingBox.x0)/boundingBox.voxLen);
-            int b = (int) ((cartSamp.y - boundingBox.y0)/boundingBox.voxLen);
-            int c = (int) ((cartSamp.z - boundingBox.z0)/boundingBox.voxLen);
-
-            // Verify that the drawn point is within the box.
-            if(a >= 0 && a < boundingBox.nx && b >= 0 && b < boundingBox.ny && c >= 0 && c < boundingBox.nz){
-                N[a][b][c]++;
-            }
-        }
+    /**
+     * Constructor
+     *
+     * @param cat         Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param fMap        OccupancyMap containing the percent occupancy of each voxel in boundingBox.
+     * @param options     Options controlling how samples are drawn and stored.
+     */
+    public DensityMap(Catalog cat, Box boundingBox, int numSamples, OccupancyMap fMap, MapOptions options) {
+        this(cat, boundingBox, numSamples, fMap, options, true);
+    }
 
-        // Update the number counts to account for the box occupancy, and calculate the expected number counts based
-        // upon boxes with occupancy of greater than 0.9.
-        int numContributors = 0;
-        double expectedN = 0;
-        for(int i = 0; i < boundingBox.nx; i++){
-            for(int j = 0; j < boundingBox.ny; j++){
-                for(int k = 0; k < boundingBox.nz; k++){
-                    N[i][j][k] /= fMap.map[i][j][k];
+    /**
+     * Constructor
+     *
+     * @param cat         Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param fMap        OccupancyMap containing the percent occupancy of each voxel in boundingBox.
+     * @param options     Options controlling how samples are drawn and stored.
+     * @param createMap   Whether to create the average map, or leave it to be filled externally (e.g. by
+     *                    TomographicMap).
+     */
+    DensityMap(Catalog cat, Box boundingBox, int numSamples, OccupancyMap fMap, MapOptions options,
+               boolean createMap) {
+        super(cat, boundingBox, numSamples, options);
+        this.fMap = fMap;
 
-                    // Add to the expected number counts if f > 0.9.
-                    if(fMap.map[i][j][k] > 0.9){
-                        expectedN += N[i][j][k];
+        // Count the high occupancy voxels once, since they are the same for every sample, and those in each jackknife
+        // region.
+        if(voxelRegions != null) regionContributors = new int[options.numRegions];
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    if(contributes(fMap.getValue(i,j,k))){
                         numContributors++;
+                        if(voxelRegions != null && voxelRegions[v] >= 0) regionContributors[voxelRegions[v]]++;
                     }
                 }
             }
         }
-        expectedN /= numContributors;
 
-        // Calculate the density contrasts.
+        if(createMap) super.createAverageMap();
+    }
+
+    /**
+     * Constructor for a view of a window of an existing density map.
+     *
+     * @param parent Map to view.
+     * @param window Voxel-aligned sub-box of the parent's bounding box.
+     */
+    private DensityMap(DensityMap parent, Box window) {
+        super(parent, window);
+        this.fMap = parent.fMap.view(window);
+        this.numContributors = parent.numContributors;
+    }
+
+    /**
+     * Returns a view of a window of the density map without copying the map values.
+     *
+     * @param window Voxel-aligned sub-box of the bounding box.
+     * @return DensityMap view.
+     */
+    public DensityMap view(Box window) {
+        return new DensityMap(this, window);
+    }
+
+    @Override
+    public double[][][] drawMapSample() {
+        // Add each galaxy to the voxels around it.
+        double weights[] = new double[boundingBox.nx * boundingBox.ny * boundingBox.nz];
+        int touched[] = new int[maxTouched()];
+        int numTouched = scatterSample(weights, touched);
+
+        // Calculate the density contrasts with the same normalization as the averaged samples.
+        double norm = sampleNorm(v -> weights[v], touched, numTouched, -1);
         double map[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
-        for(int i = 0; i < boundingBox.nx; i++){
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
             for(int j = 0; j < boundingBox.ny; j++){
-                for(int k = 0; k < boundingBox.nz; k++){
-                    map[i][j][k] = N[i][j][k] / expectedN - 1;
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    map[i][j][k] = voxelValue(i, j, k, weights[v], norm);
                 }
             }
         }
@@ -76,13 +132,71 @@ public class DensityMap extends AverageMap{
         return map;
     }
 
+    @Override
+    double sampleNorm(IntToDoubleFunction count, int touched[], int numTouched, int excludedRegion) {
+        // Calculate the expected number counts based upon the contributing voxels outside the excluded region. Empty
+        // voxels contribute nothing to the sum, so only the touched voxels are visited.
+        int ny = boundingBox.ny, nz = boundingBox.nz;
+        double expectedN = 0;
+        for(int n = 0; n < numTouched; n++){
+            int v = touched[n];
+            if(excludedRegion >= 0 && voxelRegions[v] == excludedRegion) continue;
+            double f = fMap.getValue(v / (ny * nz), (v / nz) % ny, v % nz);
+            if(contributes(f)){
+                expectedN += count.applyAsDouble(v) / f;
+            }
+        }
+
+        int contributors = numContributors;
+        if(excludedRegion >= 0) contributors -= regionContributors[excludedRegion];
+        return expectedN / contributors;
+    }
+
+    @Override
+    double voxelValue(int i, int j, int k, double count, double norm) {
+        return densityContrast(count, fMap.getValue(i,j,k), norm);
+    }
+
+    @Override
+    double emptyValue(int i, int j, int k) {
+        return densityContrast(0, fMap.getValue(i,j,k), 1);
+    }
+
+    /**
+     * Checks whether a voxel is used to calculate the expected number counts, i.e. has an occupancy greater than 0.9.
+     *
+     * @param f Occupancy of the voxel.
+     * @return Whether the voxel contributes.
+     */
+    static boolean contributes(double f){
+        return f > 0.9;
+    }
+
+    /**
+     * Calculates the density contrast of a voxel. An empty voxel has a density contrast of -1 (NaN for zero
+     * occupancy) regardless of the normalization. A zero occupancy voxel is NaN in the average map even when
+     * galaxies land in it, since its sum adds the infinite contrasts of those samples to the NaN empty value.
+     *
+     * @param count Number count of the voxel.
+     * @param f Occupancy of the voxel.
+     * @param norm Expected number count.
+     * @return Density contrast.
+     */
+    static double densityContrast(double count, double f, double norm){
+        return count / f / norm - 1;
+    }
+
+    /**
+     * Regularizes the log-normal density map, weighting each voxel towards the mean according to the spread of the
+     * voxels with similar occupancy. The log and exp sweeps over the map run in parallel.
+     */
     public void regularizeMap(){
         // Calculate the maximum occupancy value.
         double fMax = Double.NEGATIVE_INFINITY;
         for(int i = 0; i < boundingBox.nx; i++){
             for(int j = 0; j < boundingBox.ny; j++){
                 for(int k = 0; k < boundingBox.nz; k++){
-                    if(fMap.map[i][j][k] > fMax) fMax = fMap.map[i][j][k];
+                    if(fMap.getValue(i,j,k) > fMax) fMax = fMap.getValue(i,j,k);
                 }
             }
         }
@@ -91,17 +205,16 @@ public class DensityMap extends AverageMap{
         double fBinWidth = 0.1;
         int numBins = (int)Math.ceil(fMax/fBinWidth);
 
-        // Create the yMap, and calculate the bin counts.
-        double yMap[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+        // Create the yMap of log-normal y values.
+        double yMap[][][] = GridMath.evaluate(this, delta -> Math.log(1 + delta));
+
+        // Calculate the bin counts.
         int binCounts[] = new int[numBins];
         for(int i = 0; i < boundingBox.nx; i++){
             for(int j = 0; j < boundingBox.ny; j++){
                 for(int k = 0; k < boundingBox.nz; k++){
-                    // Calculate the y values (log-normal).
-                    yMap[i][j][k] = Math.log(1 + map[i][j][k]);
-
                     // Update the appropriate bin count.
-                    int ind = (int)(fMap.map[i][j][k] / fBinWidth);
+                    int ind = (int)(fMap.getValue(i,j,k) / fBinWidth);
                     binCounts[ind]++;
                 }
             }
@@ -119,7 +232,7 @@ public class DensityMap extends AverageMap{
             for(int j = 0; j < boundingBox.ny; j++){
                 for(int k = 0; k < boundingBox.nz; k++){
                     // Get the appropriate bin.
-                    int ind = (int)(fMap.map[i][j][k] / fBinWidth);
+                    int ind = (int)(fMap.getValue(i,j,k) / fBinWidth);
 
                     // Add the data to the bin.
                     bins[ind][binInds[ind]++] = yMap[i][j][k];
@@ -164,24 +277,74 @@ public class DensityMap extends AverageMap{
             System.out.println("Weight for f-bin " + i * fBinWidth + ": " + regWeights[i]);
         }
 
-        // Regularize all of the density map values.
-        for(int i = 0; i < boundingBox.nx; i++){
+        // Regularize all of the density map values, one x slice per task.
+        GridMath.parallelFor(boundingBox.nx, i -> {
             for(int j = 0; j < boundingBox.ny; j++){
                 for(int k = 0; k < boundingBox.nz; k++){
                     // Get the appropriate bin.
-                    ind = (int)(fMap.map[i][j][k] / fBinWidth);
+                    int bin = (int)(fMap.getValue(i,j,k) / fBinWidth);
 
                     // Calculate the regularized y value.
-                    if(fMap.map[i][j][k] > 0) {
-                        yMap[i][j][k] = (regWeights[ind] * yMap[i][j][k] + meanRegWeight * mean)
-                                / (regWeights[ind] + meanRegWeight);
+                    if(fMap.getValue(i,j,k) > 0) {
+                        yMap[i][j][k] = (regWeights[bin] * yMap[i][j][k] + meanRegWeight * mean)
+                                / (regWeights[bin] + meanRegWeight);
                     }else{
                         // Set y to the mean if the occupancy is zero.
                         yMap[i][j][k] = mean;
                     }
 
                     // Calculate the regularized delta value.
-                    map[i][j][k] = Math.exp(yMap[i][j][k]) - 1;
+                    setValue(i,j,k, Math.exp(yMap[i][j][k]) - 1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Smooths the density map with a Gaussian kernel exp(-r^2 / 2R^2). Voxels without a finite value (zero
+     * occupancy in an unregularized map) are treated as zero and left unchanged.
+     *
+     * @param R Smoothing scale.
+     */
+    public void smoothGaussian(double R){
+        FourierMap spectrum = new FourierMap(this);
+        spectrum.smoothGaussian(R);
+        setFiniteValues(spectrum.inverse());
+    }
+
+    /**
+     * Smooths the density map with a spherical top-hat kernel of radius R. Voxels without a finite value (zero
+     * occupancy in an unregularized map) are treated as zero and left unchanged.
+     *
+     * @param R Top-hat radius.
+     */
+    public void smoothTopHat(double R){
+        FourierMap spectrum = new FourierMap(this);
+        spectrum.smoothTopHat(R);
+        setFiniteValues(spectrum.inverse());
+    }
+
+    /**
+     * Estimates the power spectrum of the density map in linear |k| bins.
+     *
+     * @param numBins Number of k bins.
+     * @return PowerSpectrum object.
+     */
+    public FourierMap.PowerSpectrum powerSpectrum(int numBins){
+        return new FourierMap(this).powerSpectrum(numBins);
+    }
+
+    /**
+     * Replaces the finite map values with the given values.
+     *
+     * @param values New map values.
+     */
+    private void setFiniteValues(double values[][][]){
+        for(int i = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++){
+                    double value = getValue(i,j,k);
+                    if(!Double.isNaN(value) && !Double.isInfinite(value)) setValue(i,j,k, values[i][j][k]);
                 }
             }
         }
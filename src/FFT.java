@@ -0,0 +1,170 @@
+/**
+ * <h1>FFT</h1>
+ * One dimensional complex fast Fourier transform of a fixed length. Powers of two use an iterative radix-2
+ * transform and all other lengths use Bluestein's algorithm on top of it. Objects are immutable after construction
+ * and may be shared between threads.
+ *
+ * The forward transform uses exp(-2 pi i j k / n) and neither direction is normalized.
+ */
+public class FFT {
+    // Length of the transform.
+    final int n;
+
+    // Twiddle factors for the radix-2 transform.
+    private final double cos[], sin[];
+
+    // Bluestein chirp, transformed convolution kernel and the radix-2 transform of the padded length.
+    private final double chirpRe[], chirpIm[];
+    private final double kernelRe[], kernelIm[];
+    private final FFT padded;
+
+    /**
+     * Constructor
+     *
+     * @param n Length of the transform.
+     */
+    public FFT(int n){
+        this.n = n;
+
+        if(Integer.bitCount(n) == 1){
+            // Setup the radix-2 twiddle factors.
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for(int i = 0; i < n / 2; i++){
+                cos[i] = Math.cos(2 * Math.PI * i / n);
+                sin[i] = Math.sin(2 * Math.PI * i / n);
+            }
+
+            chirpRe = chirpIm = kernelRe = kernelIm = null;
+            padded = null;
+        }else{
+            cos = sin = null;
+
+            // Pad the convolution to a power of two of at least 2n - 1.
+            int m = Integer.highestOneBit(2 * n - 1) << 1;
+            padded = new FFT(m);
+
+            // Create the chirp exp(-i pi k^2 / n), reducing k^2 mod 2n to keep the angle accurate.
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            for(int k = 0; k < n; k++){
+                double angle = Math.PI * (((long) k * k) % (2L * n)) / n;
+                chirpRe[k] = Math.cos(angle);
+                chirpIm[k] = -Math.sin(angle);
+            }
+
+            // Create and transform the convolution kernel (the conjugate chirp, wrapped around).
+            kernelRe = new double[m];
+            kernelIm = new double[m];
+            kernelRe[0] = chirpRe[0];
+            kernelIm[0] = -chirpIm[0];
+            for(int k = 1; k < n; k++){
+                kernelRe[k] = kernelRe[m - k] = chirpRe[k];
+                kernelIm[k] = kernelIm[m - k] = -chirpIm[k];
+            }
+            padded.transform(kernelRe, kernelIm, false);
+        }
+    }
+
+    /**
+     * Transforms the data in place.
+     *
+     * @param re Real components, of length n.
+     * @param im Imaginary components, of length n.
+     * @param inverse Whether to perform the (unnormalized) inverse transform.
+     */
+    public void transform(double re[], double im[], boolean inverse){
+        // The inverse transform is the conjugate of the forward transform of the conjugate.
+        if(inverse){
+            for(int i = 0; i < n; i++) im[i] = -im[i];
+        }
+
+        if(padded == null){
+            radix2(re, im);
+        }else{
+            bluestein(re, im);
+        }
+
+        if(inverse){
+            for(int i = 0; i < n; i++) im[i] = -im[i];
+        }
+    }
+
+    /**
+     * Forward radix-2 transform for power of two lengths.
+     *
+     * @param re Real components.
+     * @param im Imaginary components.
+     */
+    private void radix2(double re[], double im[]){
+        // Bit reversal permutation.
+        for(int i = 1, j = 0; i < n; i++){
+            int bit = n >> 1;
+            for(; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+
+            if(i < j){
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        // Butterflies.
+        for(int len = 2; len <= n; len <<= 1){
+            int half = len >> 1;
+            int step = n / len;
+            for(int i = 0; i < n; i += len){
+                for(int j = 0; j < half; j++){
+                    double wr = cos[j * step];
+                    double wi = -sin[j * step];
+
+                    int a = i + j;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward transform for arbitrary lengths using Bluestein's algorithm.
+     *
+     * @param re Real components.
+     * @param im Imaginary components.
+     */
+    private void bluestein(double re[], double im[]){
+        int m = padded.n;
+
+        // Multiply the data by the chirp.
+        double aRe[] = new double[m];
+        double aIm[] = new double[m];
+        for(int k = 0; k < n; k++){
+            aRe[k] = re[k] * chirpRe[k] - im[k] * chirpIm[k];
+            aIm[k] = re[k] * chirpIm[k] + im[k] * chirpRe[k];
+        }
+
+        // Convolve with the kernel.
+        padded.transform(aRe, aIm, false);
+        for(int k = 0; k < m; k++){
+            double r = aRe[k] * kernelRe[k] - aIm[k] * kernelIm[k];
+            double i = aRe[k] * kernelIm[k] + aIm[k] * kernelRe[k];
+            aRe[k] = r;
+            aIm[k] = i;
+        }
+        padded.transform(aRe, aIm, true);
+
+        // Normalize the convolution and multiply by the chirp.
+        for(int k = 0; k < n; k++){
+            double r = aRe[k] / m;
+            double i = aIm[k] / m;
+            re[k] = r * chirpRe[k] - i * chirpIm[k];
+            im[k] = r * chirpIm[k] + i * chirpRe[k];
+        }
+    }
+}
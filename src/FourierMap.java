@@ -0,0 +1,308 @@
+/**
+ * <h1>Fourier Map</h1>
+ * Half-complex Fourier transform of a real map on a Box, computed with a multithreaded real-to-complex 3D FFT.
+ * Only the non-negative kz modes (nz/2 + 1 of them) are stored since the remaining modes follow from Hermitian
+ * symmetry. Provides smoothing and power spectrum estimation directly on the spectrum.
+ */
+public class FourierMap {
+    // Box the transformed map lives on.
+    final Box boundingBox;
+
+    // Number of stored kz modes.
+    final int nzc;
+
+    // Real and imaginary components of the spectrum.
+    final double re[][][];
+    final double im[][][];
+
+    // One dimensional transforms for each direction.
+    private final FFT fftX, fftY, fftZ;
+
+    /**
+     * Constructor. Transforms the map values of the given map. Non-finite voxels (e.g. the zero occupancy voxels
+     * of an unregularized density map) are treated as zero.
+     *
+     * @param avgMap Map to transform.
+     */
+    public FourierMap(AverageMap avgMap){
+        this.boundingBox = avgMap.boundingBox;
+        this.nzc = boundingBox.nz / 2 + 1;
+
+        re = new double[boundingBox.nx][boundingBox.ny][nzc];
+        im = new double[boundingBox.nx][boundingBox.ny][nzc];
+
+        fftX = new FFT(boundingBox.nx);
+        fftY = new FFT(boundingBox.ny);
+        fftZ = new FFT(boundingBox.nz);
+
+        forward(avgMap);
+    }
+
+    /**
+     * Performs the forward real-to-complex transform of the map.
+     *
+     * @param avgMap Map to transform.
+     */
+    private void forward(AverageMap avgMap){
+        int nx = boundingBox.nx, ny = boundingBox.ny, nz = boundingBox.nz;
+
+        // Transform the real z lines, keeping the non-negative frequencies.
+        GridMath.parallelFor(nx, i -> {
+            double lineRe[] = new double[nz];
+            double lineIm[] = new double[nz];
+            for(int j = 0; j < ny; j++){
+                for(int k = 0; k < nz; k++){
+                    double value = avgMap.getValue(i,j,k);
+                    lineRe[k] = Double.isNaN(value) || Double.isInfinite(value) ? 0 : value;
+                    lineIm[k] = 0;
+                }
+                fftZ.transform(lineRe, lineIm, false);
+                System.arraycopy(lineRe, 0, re[i][j], 0, nzc);
+                System.arraycopy(lineIm, 0, im[i][j], 0, nzc);
+            }
+        });
+
+        transformY(false);
+        transformX(false);
+    }
+
+    /**
+     * Performs the inverse complex-to-real transform of the spectrum. The spectrum itself is left unchanged.
+     *
+     * @return Map values in real space.
+     */
+    public double[][][] inverse(){
+        int nx = boundingBox.nx, ny = boundingBox.ny, nz = boundingBox.nz;
+
+        // Work on a copy so that the spectrum can be reused.
+        FourierMap copy = new FourierMap(this);
+        copy.transformX(true);
+        copy.transformY(true);
+
+        // Rebuild the full z lines from Hermitian symmetry and transform back to real values.
+        double norm = (double) nx * ny * nz;
+        double result[][][] = new double[nx][ny][nz];
+        GridMath.parallelFor(nx, i -> {
+            double lineRe[] = new double[nz];
+            double lineIm[] = new double[nz];
+            for(int j = 0; j < ny; j++){
+                for(int k = 0; k < nz; k++){
+                    if(k < nzc){
+                        lineRe[k] = copy.re[i][j][k];
+                        lineIm[k] = copy.im[i][j][k];
+                    }else{
+                        lineRe[k] = copy.re[i][j][nz - k];
+                        lineIm[k] = -copy.im[i][j][nz - k];
+                    }
+                }
+                fftZ.transform(lineRe, lineIm, true);
+                for(int k = 0; k < nz; k++){
+                    result[i][j][k] = lineRe[k] / norm;
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other FourierMap to copy.
+     */
+    private FourierMap(FourierMap other){
+        this.boundingBox = other.boundingBox;
+        this.nzc = other.nzc;
+        this.fftX = other.fftX;
+        this.fftY = other.fftY;
+        this.fftZ = other.fftZ;
+
+        re = new double[boundingBox.nx][boundingBox.ny][];
+        im = new double[boundingBox.nx][boundingBox.ny][];
+        for(int i = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                re[i][j] = other.re[i][j].clone();
+                im[i][j] = other.im[i][j].clone();
+            }
+        }
+    }
+
+    /**
+     * Transforms the spectrum along y.
+     *
+     * @param inverse Whether to perform the inverse transform.
+     */
+    private void transformY(boolean inverse){
+        int ny = boundingBox.ny;
+        GridMath.parallelFor(boundingBox.nx, i -> {
+            double lineRe[] = new double[ny];
+            double lineIm[] = new double[ny];
+            for(int k = 0; k < nzc; k++){
+                for(int j = 0; j < ny; j++){
+                    lineRe[j] = re[i][j][k];
+                    lineIm[j] = im[i][j][k];
+                }
+                fftY.transform(lineRe, lineIm, inverse);
+                for(int j = 0; j < ny; j++){
+                    re[i][j][k] = lineRe[j];
+                    im[i][j][k] = lineIm[j];
+                }
+            }
+        });
+    }
+
+    /**
+     * Transforms the spectrum along x.
+     *
+     * @param inverse Whether to perform the inverse transform.
+     */
+    private void transformX(boolean inverse){
+        int nx = boundingBox.nx;
+        GridMath.parallelFor(boundingBox.ny, j -> {
+            double lineRe[] = new double[nx];
+            double lineIm[] = new double[nx];
+            for(int k = 0; k < nzc; k++){
+                for(int i = 0; i < nx; i++){
+                    lineRe[i] = re[i][j][k];
+                    lineIm[i] = im[i][j][k];
+                }
+                fftX.transform(lineRe, lineIm, inverse);
+                for(int i = 0; i < nx; i++){
+                    re[i][j][k] = lineRe[i];
+                    im[i][j][k] = lineIm[i];
+                }
+            }
+        });
+    }
+
+    /**
+     * Calculates the wavenumber of a Fourier index along a direction with n voxels.
+     *
+     * @param ind Fourier index.
+     * @param n Number of voxels in the direction.
+     * @return Wavenumber.
+     */
+    private double wavenumber(int ind, int n){
+        int freq = ind <= n / 2 ? ind : ind - n;
+        return 2 * Math.PI * freq / (n * boundingBox.voxLen);
+    }
+
+    /**
+     * Calculates the magnitude of the wavevector of a stored mode.
+     *
+     * @param i x Fourier index.
+     * @param j y Fourier index.
+     * @param k z Fourier index.
+     * @return |k|
+     */
+    double kMagnitude(int i, int j, int k){
+        double kx = wavenumber(i, boundingBox.nx);
+        double ky = wavenumber(j, boundingBox.ny);
+        double kz = wavenumber(k, boundingBox.nz);
+        return Math.sqrt(kx * kx + ky * ky + kz * kz);
+    }
+
+    /**
+     * Smooths the map with a Gaussian kernel exp(-r^2 / 2R^2).
+     *
+     * @param R Smoothing scale.
+     */
+    public void smoothGaussian(double R){
+        GridMath.parallelFor(boundingBox.nx, i -> {
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < nzc; k++){
+                    double kR = kMagnitude(i,j,k) * R;
+                    double w = Math.exp(-0.5 * kR * kR);
+                    re[i][j][k] *= w;
+                    im[i][j][k] *= w;
+                }
+            }
+        });
+    }
+
+    /**
+     * Smooths the map with a spherical top-hat kernel of radius R.
+     *
+     * @param R Top-hat radius.
+     */
+    public void smoothTopHat(double R){
+        GridMath.parallelFor(boundingBox.nx, i -> {
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < nzc; k++){
+                    double x = kMagnitude(i,j,k) * R;
+                    double w = x == 0 ? 1 : 3 * (Math.sin(x) - x * Math.cos(x)) / (x * x * x);
+                    re[i][j][k] *= w;
+                    im[i][j][k] *= w;
+                }
+            }
+        });
+    }
+
+    /**
+     * Estimates the power spectrum P(k) = V |delta_k|^2 / N^2 in linear bins of |k| from 0 to the largest
+     * wavenumber on the grid. The k = 0 mode is excluded.
+     *
+     * @param numBins Number of k bins.
+     * @return PowerSpectrum object.
+     */
+    public PowerSpectrum powerSpectrum(int numBins){
+        int nx = boundingBox.nx, ny = boundingBox.ny, nz = boundingBox.nz;
+        double numVoxels = (double) nx * ny * nz;
+        double volume = numVoxels * Math.pow(boundingBox.voxLen, 3);
+        double kMax = kMagnitude(nx / 2, ny / 2, nz / 2);
+        double binWidth = kMax / numBins;
+
+        // Accumulate the power and mode counts in each bin. Modes with 0 < kz < nz/2 stand in for their
+        // conjugates as well, so they are counted twice.
+        double kSum[] = new double[numBins];
+        double pSum[] = new double[numBins];
+        long counts[] = new long[numBins];
+        for(int i = 0; i < nx; i++){
+            for(int j = 0; j < ny; j++){
+                for(int k = 0; k < nzc; k++){
+                    if(i == 0 && j == 0 && k == 0) continue;
+
+                    double kMag = kMagnitude(i,j,k);
+                    int ind = Math.min((int) (kMag / binWidth), numBins - 1);
+                    int weight = (k == 0 || 2 * k == nz) ? 1 : 2;
+
+                    double power = re[i][j][k] * re[i][j][k] + im[i][j][k] * im[i][j][k];
+                    kSum[ind] += weight * kMag;
+                    pSum[ind] += weight * power * volume / (numVoxels * numVoxels);
+                    counts[ind] += weight;
+                }
+            }
+        }
+
+        // Average over the modes in each bin.
+        PowerSpectrum pk = new PowerSpectrum(numBins);
+        for(int b = 0; b < numBins; b++){
+            pk.numModes[b] = counts[b];
+            pk.k[b] = counts[b] > 0 ? kSum[b] / counts[b] : (b + 0.5) * binWidth;
+            pk.p[b] = counts[b] > 0 ? pSum[b] / counts[b] : 0;
+        }
+
+        return pk;
+    }
+
+    /**
+     * <h1>Power Spectrum</h1>
+     * Binned power spectrum estimate.
+     */
+    public static class PowerSpectrum {
+        // Mean |k| of the modes in each bin.
+        public final double k[];
+
+        // Mean power in each bin.
+        public final double p[];
+
+        // Number of modes in each bin.
+        public final long numModes[];
+
+        PowerSpectrum(int numBins){
+            k = new double[numBins];
+            p = new double[numBins];
+            numModes = new long[numBins];
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntConsumer;
+
+/**
+ * <h1>Grid Math</h1>
+ * Parallel elementwise operations over the voxels of a map. Each task handles one x slice, so the inner loops run
+ * over contiguous rows.
+ */
+public final class GridMath {
+    private GridMath(){}
+
+    /**
+     * Evaluates a function of every voxel value of a map into a new array.
+     *
+     * @param map Map to read.
+     * @param op Function of the voxel value.
+     * @return Array of the function values.
+     */
+    public static double[][][] evaluate(AverageMap map, DoubleUnaryOperator op){
+        Box box = map.boundingBox;
+        double result[][][] = new double[box.nx][box.ny][box.nz];
+        parallelFor(box.nx, i -> {
+            for(int j = 0; j < box.ny; j++){
+                double row[] = result[i][j];
+                for(int k = 0; k < box.nz; k++) row[k] = op.applyAsDouble(map.getValue(i,j,k));
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Runs body(i) for i in [0,n) using one thread per core, or on the calling thread if there is only one
+     * iteration. The first exception thrown by the body is rethrown once all threads have finished.
+     *
+     * @param n Number of iterations.
+     * @param body Loop body.
+     */
+    static void parallelFor(int n, IntConsumer body){
+        int numWorkers = Math.min(n, Runtime.getRuntime().availableProcessors());
+        if(numWorkers <= 1){
+            for(int i = 0; i < n; i++) body.accept(i);
+            return;
+        }
+
+        Thread threads[] = new Thread[numWorkers];
+        for(int t = 0; t < numWorkers; t++){
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for(int i = id; i < n; i += numWorkers) body.accept(i);
+            });
+        }
+        AverageMap.runThreads(threads);
+    }
+}
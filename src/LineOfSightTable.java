@@ -0,0 +1,213 @@
+import java.util.Arrays;
+
+/**
+ * <h1>Line of Sight Table</h1>
+ * For every galaxy of a catalog, the voxels of a Box crossed by its line of sight within +/- 5 sigma of the
+ * photo-z (or within its PDF), with the cumulative probability of its redshift sample landing in each of them.
+ * Drawing a voxel then takes one uniform random number and a short binary search instead of a redshift sample, a
+ * comoving distance and a voxel calculation.
+ */
+public class LineOfSightTable {
+    // Box the voxels belong to.
+    final Box box;
+
+    // The entries of galaxy g are start[g] to start[g+1]-1.
+    private final int start[];
+
+    // Flat voxel index ((a * ny) + b) * nz + c of each entry.
+    private final int voxels[];
+
+    // Cumulative probability of each entry. The last entry of a galaxy is its total probability inside the box.
+    private final float cdf[];
+
+    /**
+     * Constructor. Walks every galaxy's line of sight through the box.
+     *
+     * @param cat Catalog of galaxies.
+     * @param box Box to tabulate voxels of.
+     */
+    public LineOfSightTable(Catalog cat, Box box){
+        this.box = box;
+
+        int numGals = cat.gals.length;
+        int numCores = Runtime.getRuntime().availableProcessors();
+        int chunk = (numGals + numCores - 1) / numCores;
+
+        // Build the entries of each chunk of galaxies in parallel.
+        Chunk chunks[] = new Chunk[numCores];
+        Thread threads[] = new Thread[numCores];
+        for(int t = 0; t < numCores; t++){
+            int first = Math.min(t * chunk, numGals);
+            int last = Math.min(first + chunk, numGals);
+            Chunk c = chunks[t] = new Chunk(last - first);
+            threads[t] = new Thread(() -> {
+                for(int g = first; g < last; g++){
+                    c.counts[g - first] = walk(cat, g, c);
+                }
+            });
+        }
+        AverageMap.runThreads(threads);
+
+        // Concatenate the chunks.
+        int total = 0;
+        for(Chunk c : chunks) total += c.size;
+        start = new int[numGals + 1];
+        voxels = new int[total];
+        cdf = new float[total];
+
+        int g = 0, offset = 0;
+        for(Chunk c : chunks){
+            System.arraycopy(c.voxels, 0, voxels, offset, c.size);
+            System.arraycopy(c.cdf, 0, cdf, offset, c.size);
+            for(int n = 0; n < c.counts.length; n++){
+                start[g + 1] = start[g] + c.counts[n];
+                g++;
+            }
+            offset += c.size;
+        }
+    }
+
+    /**
+     * Draws the voxel of a galaxy's sample.
+     *
+     * @param g Index of the galaxy.
+     * @param u Uniform random number in [0,1).
+     * @return Flat voxel index, or -1 if the sample falls outside of the box.
+     */
+    public int drawVoxel(int g, double u){
+        int lo = start[g];
+        int hi = start[g + 1] - 1;
+        if(hi < lo || u >= cdf[hi]) return -1;
+
+        // Find the first entry whose cumulative probability exceeds u.
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(cdf[mid] > u){
+                hi = mid;
+            }else{
+                lo = mid + 1;
+            }
+        }
+
+        return voxels[lo];
+    }
+
+    /**
+     * Walks a galaxy's line of sight through the box voxel by voxel and appends the crossed voxels to the chunk.
+     *
+     * @param cat Catalog of galaxies.
+     * @param g Index of the galaxy.
+     * @param chunk Chunk to append to.
+     * @return Number of entries appended.
+     */
+    private int walk(Catalog cat, int g, Chunk chunk){
+        Galaxy gal = cat.gals[g];
+        CartesianGalaxy norm = cat.cartNorms[g];
+        double dir[] = {norm.x, norm.y, norm.z};
+        double origin[] = {box.x0, box.y0, box.z0};
+        int n[] = {box.nx, box.ny, box.nz};
+
+        // Handle Gaussian galaxies without a redshift error, which always land at their photo-z.
+        if(cat.pdfs == null && gal.zErr <= 0){
+            double photoR = cat.cosmo.comovingDist(gal.zPhoto);
+            int a = (int) ((photoR * dir[0] - box.x0) / box.voxLen);
+            int b = (int) ((photoR * dir[1] - box.y0) / box.voxLen);
+            int c = (int) ((photoR * dir[2] - box.z0) / box.voxLen);
+            if(a < 0 || a >= box.nx || b < 0 || b >= box.ny || c < 0 || c >= box.nz) return 0;
+            chunk.add((a * box.ny + b) * box.nz + c, 1);
+            return 1;
+        }
+
+        // Clip the reachable segment of the ray to the box.
+        double range[] = cat.distanceRange(g);
+        double rEnter = Math.max(0, range[0]);
+        double rExit = range[1];
+        for(int d = 0; d < 3; d++){
+            if(dir[d] == 0){
+                if(0 < origin[d] || 0 >= origin[d] + n[d] * box.voxLen) return 0;
+                continue;
+            }
+            double r1 = origin[d] / dir[d];
+            double r2 = (origin[d] + n[d] * box.voxLen) / dir[d];
+            rEnter = Math.max(rEnter, Math.min(r1, r2));
+            rExit = Math.min(rExit, Math.max(r1, r2));
+        }
+        if(rEnter >= rExit) return 0;
+
+        // Find the starting voxel and the distance to the next boundary along each axis.
+        int ind[] = new int[3];
+        int step[] = new int[3];
+        double next[] = new double[3];
+        double delta[] = new double[3];
+        double rMid = rEnter + 0.5 * Math.min(rExit - rEnter, 1e-6 * box.voxLen);
+        for(int d = 0; d < 3; d++){
+            ind[d] = (int) Math.floor((rMid * dir[d] - origin[d]) / box.voxLen);
+            ind[d] = Math.max(0, Math.min(n[d] - 1, ind[d]));
+            if(dir[d] > 0){
+                step[d] = 1;
+                next[d] = (origin[d] + (ind[d] + 1) * box.voxLen) / dir[d];
+                delta[d] = box.voxLen / dir[d];
+            }else if(dir[d] < 0){
+                step[d] = -1;
+                next[d] = (origin[d] + ind[d] * box.voxLen) / dir[d];
+                delta[d] = -box.voxLen / dir[d];
+            }else{
+                next[d] = Double.POSITIVE_INFINITY;
+                delta[d] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        // Step through the voxels, accumulating the probability of the redshift sample in each.
+        int count = 0;
+        double r = rEnter;
+        double prevCdf = cat.redshiftCdf(g, cat.cosmo.redshift(r));
+        double cumulative = 0;
+        while(r < rExit){
+            int axis = next[0] <= next[1] ? (next[0] <= next[2] ? 0 : 2) : (next[1] <= next[2] ? 1 : 2);
+            double rNext = Math.min(next[axis], rExit);
+
+            double nextCdf = cat.redshiftCdf(g, cat.cosmo.redshift(rNext));
+            if(nextCdf > prevCdf){
+                cumulative += nextCdf - prevCdf;
+                chunk.add((ind[0] * box.ny + ind[1]) * box.nz + ind[2], (float) cumulative);
+                count++;
+            }
+            prevCdf = nextCdf;
+            r = rNext;
+
+            // Move to the next voxel.
+            ind[axis] += step[axis];
+            next[axis] += delta[axis];
+            if(ind[axis] < 0 || ind[axis] >= n[axis]) break;
+        }
+
+        return count;
+    }
+
+    /**
+     * <h1>Chunk</h1>
+     * Growable entry lists for one chunk of galaxies.
+     */
+    private static class Chunk {
+        int voxels[] = new int[1024];
+        float cdf[] = new float[1024];
+        int size = 0;
+
+        // Number of entries of each galaxy in the chunk.
+        final int counts[];
+
+        Chunk(int numGals){
+            counts = new int[numGals];
+        }
+
+        void add(int voxel, float cumulative){
+            if(size == voxels.length){
+                voxels = Arrays.copyOf(voxels, 2 * size);
+                cdf = Arrays.copyOf(cdf, 2 * size);
+            }
+            voxels[size] = voxel;
+            cdf[size] = cumulative;
+            size++;
+        }
+    }
+}
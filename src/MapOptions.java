@@ -0,0 +1,84 @@
+/**
+ * <h1>Map Options</h1>
+ * Optional settings controlling how an AverageMap draws and stores its samples. Setters return the object so that
+ * options can be chained, e.g. new MapOptions().precision(Precision.MIXED).lineOfSight(true).
+ */
+public class MapOptions {
+    // Storage precision of the samples and the average map.
+    Precision precision = Precision.DOUBLE;
+
+    // Whether to draw galaxies directly into voxels using precomputed line-of-sight tables.
+    boolean lineOfSight = false;
+
+    // Mass assignment scheme of the galaxy samples.
+    Assignment assignment = Assignment.NGP;
+
+    // Jackknife region of each direction on the sky, or null, and the number of regions.
+    RegionFunction regions = null;
+    int numRegions = 0;
+
+    /**
+     * Sets the storage precision of the samples and the average map.
+     *
+     * @param precision Storage precision.
+     * @return This object.
+     */
+    public MapOptions precision(Precision precision){
+        this.precision = precision;
+        return this;
+    }
+
+    /**
+     * Sets whether to draw galaxies directly into voxels using a LineOfSightTable built for the map's box.
+     *
+     * @param lineOfSight Whether to use line-of-sight tables.
+     * @return This object.
+     */
+    public MapOptions lineOfSight(boolean lineOfSight){
+        this.lineOfSight = lineOfSight;
+        return this;
+    }
+
+    /**
+     * Sets the mass assignment scheme used to spread each galaxy sample over the voxels around it. CIC and TSC need
+     * the position of each sample within its voxel, so they cannot be combined with line-of-sight tables. They draw
+     * samples in double precision whatever the precision option, which then only sets how the final map is stored.
+     *
+     * @param assignment Mass assignment scheme.
+     * @return This object.
+     */
+    public MapOptions assignment(Assignment assignment){
+        this.assignment = assignment;
+        return this;
+    }
+
+    /**
+     * Divides the sky into jackknife regions. The leave-one-region-out maps are then accumulated alongside the main
+     * map in the same sampling pass. Galaxies are assigned by their position and voxels by the direction of their
+     * center, so that each leave-one-out map can drop the footprint of the removed region.
+     *
+     * @param regions Region of each direction on the sky.
+     * @param numRegions Number of regions.
+     * @return This object.
+     */
+    public MapOptions regions(RegionFunction regions, int numRegions){
+        this.regions = regions;
+        this.numRegions = numRegions;
+        return this;
+    }
+
+    /**
+     * <h1>Region Function</h1>
+     * Jackknife region of a direction on the sky.
+     */
+    public interface RegionFunction {
+        /**
+         * Returns the jackknife region of a direction.
+         *
+         * @param ra Right ascension in degrees, wrapped into [0, 360) for galaxies and voxels alike.
+         * @param dec Declination in degrees.
+         * @return Region index in [0, numRegions), or -1 if the direction belongs to no region and is never left out.
+         */
+        int region(double ra, double dec);
+    }
+}
@@ -0,0 +1,351 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import nom.tam.fits.FitsException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <h1>Map Server</h1>
+ * Long-lived HTTP server that keeps loaded catalogs and cosmologies in memory between map jobs. Requests are run
+ * concurrently on a shared pool and the resulting maps are returned in binary.
+ *
+ * A map is requested with GET /map and the parameters:
+ * <ul>
+ *     <li>gals - Galaxy catalog fit file, relative to the data directory (required).</li>
+ *     <li>rands - Randoms catalog fit file, relative to the data directory (required).</li>
+ *     <li>omega - Survey area in steradians (required).</li>
+ *     <li>voxLen - Voxel length (default 20).</li>
+ *     <li>fSamples, dSamples - Number of occupancy and density samples (default 10 and 1000).</li>
+ *     <li>h, omegaM - Cosmological parameters (default 0.7 and 0.286).</li>
+ *     <li>precision - DOUBLE or MIXED (default DOUBLE).</li>
+ *     <li>map - occ, delta or reg (default reg).</li>
+ *     <li>cone - ra,dec,radius in degrees restricting both catalogs to a patch of sky (optional). omega should then
+ *     be the area of the patch.</li>
+ *     <li>x0, y0, z0, nx, ny, nz - Sub-region box to map instead of the galaxy bounding box (optional).</li>
+ * </ul>
+ *
+ * Invalid requests, including files outside the data directory, get a 400 response and failures to load a catalog
+ * or create the map get a 500 response.
+ *
+ * The response is big-endian: int nx, ny, nz, double x0, y0, z0, voxLen, byte precision (0 DOUBLE, 1 MIXED), then
+ * the nx*ny*nz map values in (i,j,k) order as doubles or floats.
+ */
+public class MapServer {
+    // Cached cosmologies and catalogs. Catalogs are cached once per file, since their galaxies and normals do not
+    // depend on the cosmology, and as futures so that they load outside of the map's locks while concurrent requests
+    // for the same file wait for the single load. Each request wraps the cached arrays with its own cosmology.
+    private final Map<String, Cosmology> cosmologies = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Catalog>> catalogs = new ConcurrentHashMap<>();
+    // Angular indexes of the cached catalogs.
+    private final Map<Catalog, AngularIndex> indexes = new ConcurrentHashMap<>();
+
+    // Underlying HTTP server and its request pool.
+    private final HttpServer server;
+    private final ExecutorService pool;
+
+    // Directory that all requested catalog files must be in.
+    private final Path dataDir;
+
+    /**
+     * Constructor. Binds the server to the loopback interface.
+     *
+     * @param port Port to listen on.
+     * @param numWorkers Number of map requests to run concurrently.
+     * @param dataDir Directory that all requested catalog files must be in.
+     * @throws IOException
+     */
+    public MapServer(int port, int numWorkers, String dataDir) throws IOException {
+        this.dataDir = Paths.get(dataDir).toAbsolutePath().normalize();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        pool = Executors.newFixedThreadPool(numWorkers);
+
+        server.createContext("/map", this::handleMap);
+        server.setExecutor(pool);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start(){
+        server.start();
+        System.out.println("Map server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops the server and its request pool.
+     */
+    public void stop(){
+        server.stop(0);
+        pool.shutdown();
+    }
+
+    /**
+     * Returns the cached cosmology for the given parameters, creating it if necessary.
+     *
+     * @param h Dimensionless Hubble parameter.
+     * @param omegaM Omega matter value.
+     * @return Cosmology object.
+     */
+    Cosmology getCosmology(double h, double omegaM){
+        return cosmologies.computeIfAbsent(h + "," + omegaM, key -> new FlatLambdaCDM(h, omegaM));
+    }
+
+    /**
+     * Resolves a requested file against the data directory.
+     *
+     * @param fname Filename relative to the data directory.
+     * @return Normalized path of the file.
+     */
+    Path resolve(String fname){
+        Path path = dataDir.resolve(fname).normalize();
+        if(!path.startsWith(dataDir)) throw new IllegalArgumentException(fname + " is outside the data directory");
+        return path;
+    }
+
+    /**
+     * Returns the cached catalog for the given file, loading it if necessary. A failed load is not cached, so a later
+     * request retries it. The cosmology of the returned catalog is the one it was first loaded with; use
+     * requestCatalog to get the catalog with a request's cosmology.
+     *
+     * @param fname Filename to read from, relative to the data directory.
+     * @param randoms Whether the file is a randoms catalog.
+     * @param cosmo Cosmology to load the catalog with if it is not cached.
+     * @return Catalog object.
+     * @throws FitsException
+     * @throws IOException
+     */
+    Catalog getCatalog(String fname, boolean randoms, Cosmology cosmo) throws FitsException, IOException {
+        Path path = resolve(fname);
+        String key = (randoms ? "rands:" : "gals:") + path;
+
+        // Only the request that registers the future loads the catalog, the others wait for it.
+        CompletableFuture<Catalog> future = new CompletableFuture<>();
+        CompletableFuture<Catalog> cached = catalogs.putIfAbsent(key, future);
+        if(cached == null){
+            try {
+                future.complete(CatalogCache.load(path.toString(), randoms, cosmo));
+            } catch (Throwable e) {
+                catalogs.remove(key, future);
+                future.completeExceptionally(e);
+            }
+            cached = future;
+        }
+
+        try {
+            return cached.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading catalog " + fname, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof FitsException) throw (FitsException) cause;
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IOException("Unable to load catalog " + fname, cause);
+        }
+    }
+
+    /**
+     * Wraps a cached catalog's galaxies and normals with a request's cosmology, optionally restricted to a cone. The
+     * cone is found with the cached catalog's index, which is built on first use.
+     *
+     * @param cached Cached catalog.
+     * @param cosmo Cosmology of the request.
+     * @param cone ra,dec,radius of the cone in degrees, or null for the whole catalog.
+     * @return Catalog of the request.
+     */
+    Catalog requestCatalog(Catalog cached, Cosmology cosmo, String cone){
+        Catalog cat = new Catalog(cached.gals, cached.cartNorms, cosmo);
+        if(cone == null) return cat;
+
+        String parts[] = cone.split(",");
+        if(parts.length != 3) throw new IllegalArgumentException("cone must be ra,dec,radius");
+
+        AngularIndex index = indexes.computeIfAbsent(cached, AngularIndex::new);
+        return cat.view(index.cone(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                Double.parseDouble(parts[2])));
+    }
+
+    /**
+     * Handles a single map request. The map is created in full before any headers are sent, so that a failure can
+     * still be reported with an error status.
+     *
+     * @param exchange HTTP exchange of the request.
+     * @throws IOException
+     */
+    private void handleMap(HttpExchange exchange) throws IOException {
+        try {
+            AverageMap map;
+            try {
+                map = createMap(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.toString());
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, e.toString());
+                return;
+            }
+
+            // Once the headers are sent, a failed write can only cut the response short.
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            writeMap(map, exchange.getResponseBody());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Creates the map described by the request parameters.
+     *
+     * @param params Request parameters.
+     * @return Requested map.
+     * @throws FitsException
+     * @throws IOException
+     */
+    private AverageMap createMap(Map<String, String> params) throws FitsException, IOException {
+        // Verify the request parameters.
+        requireParams(params, "gals", "rands", "omega");
+        if(params.containsKey("nx")) requireParams(params, "x0", "y0", "z0", "ny", "nz");
+        String mapType = params.getOrDefault("map", "reg");
+        if(!mapType.equals("occ") && !mapType.equals("delta") && !mapType.equals("reg")){
+            throw new IllegalArgumentException("map must be occ, delta or reg");
+        }
+
+        // Read the request parameters.
+        double h = Double.parseDouble(params.getOrDefault("h", "0.7"));
+        double omegaM = Double.parseDouble(params.getOrDefault("omegaM", "0.286"));
+        double voxLen = Double.parseDouble(params.getOrDefault("voxLen", "20"));
+        int fSamples = Integer.parseInt(params.getOrDefault("fSamples", "10"));
+        int dSamples = Integer.parseInt(params.getOrDefault("dSamples", "1000"));
+        Precision precision = Precision.valueOf(params.getOrDefault("precision", "DOUBLE"));
+        double omega = Double.parseDouble(params.get("omega"));
+
+        Cosmology cosmo = getCosmology(h, omegaM);
+        Catalog galCat = requestCatalog(getCatalog(params.get("gals"), false, cosmo), cosmo, params.get("cone"));
+        Catalog randCat = requestCatalog(getCatalog(params.get("rands"), true, cosmo), cosmo, params.get("cone"));
+
+        // Use the requested sub-region, or the bounding box of the galaxies.
+        Box box;
+        if(params.containsKey("nx")){
+            box = new Box(Double.parseDouble(params.get("x0")), Double.parseDouble(params.get("y0")),
+                    Double.parseDouble(params.get("z0")), Integer.parseInt(params.get("nx")),
+                    Integer.parseInt(params.get("ny")), Integer.parseInt(params.get("nz")), voxLen);
+        }else{
+            box = galCat.createBoundingBox(voxLen);
+        }
+
+        // Create the requested map.
+        AverageMap map = new OccupancyMap(randCat, box, fSamples, omega, precision);
+        if(!mapType.equals("occ")){
+            DensityMap dMap = new DensityMap(galCat, box, dSamples, (OccupancyMap) map, precision);
+            if(mapType.equals("reg")) dMap.regularizeMap();
+            map = dMap;
+        }
+
+        return map;
+    }
+
+    /**
+     * Verifies that the request has all of the given parameters.
+     *
+     * @param params Request parameters.
+     * @param names Names of the required parameters.
+     */
+    private static void requireParams(Map<String, String> params, String... names){
+        for(String name : names){
+            if(!params.containsKey(name)) throw new IllegalArgumentException(name + " is required");
+        }
+    }
+
+    /**
+     * Writes a map in the binary response format.
+     *
+     * @param map Map to write.
+     * @param stream Stream to write to.
+     * @throws IOException
+     */
+    static void writeMap(AverageMap map, OutputStream stream) throws IOException {
+        Box box = map.boundingBox;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        // Write the header.
+        out.writeInt(box.nx);
+        out.writeInt(box.ny);
+        out.writeInt(box.nz);
+        out.writeDouble(box.x0);
+        out.writeDouble(box.y0);
+        out.writeDouble(box.z0);
+        out.writeDouble(box.voxLen);
+        out.writeByte(map.precision == Precision.MIXED ? 1 : 0);
+
+        // Write the map values.
+        for(int i = 0; i < box.nx; i++){
+            for(int j = 0; j < box.ny; j++){
+                for(int k = 0; k < box.nz; k++){
+                    if(map.precision == Precision.MIXED){
+                        out.writeFloat((float) map.getValue(i,j,k));
+                    }else{
+                        out.writeDouble(map.getValue(i,j,k));
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends a plain text error response.
+     *
+     * @param exchange HTTP exchange of the request.
+     * @param code HTTP status code.
+     * @param message Error message.
+     * @throws IOException
+     */
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        byte body[] = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Parses a URL query string into a parameter map.
+     *
+     * @param query Raw query string.
+     * @return Map of parameter names to values.
+     * @throws UnsupportedEncodingException
+     */
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if(query == null) return params;
+
+        for(String pair : query.split("&")){
+            int ind = pair.indexOf('=');
+            if(ind < 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, ind), "UTF-8"),
+                    URLDecoder.decode(pair.substring(ind + 1), "UTF-8"));
+        }
+
+        return params;
+    }
+}
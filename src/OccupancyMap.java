@@ -1,4 +1,5 @@
 import java.util.Random;
+import java.util.function.IntToDoubleFunction;
 
 /**
  * <h1>Occupancy Map</h1>
@@ -22,21 +23,70 @@ public class OccupancyMap extends AverageMap {
      * @param Omega       Survey area in steradians.
      */
     public OccupancyMap(Catalog rands, Box boundingBox, int numSamples, double Omega) {
-        super(rands, boundingBox, numSamples);
+        this(rands, boundingBox, numSamples, Omega, Precision.DOUBLE);
+    }
+
+    /**
+     * Constructor. Creates the occupancy map with the given storage precision.
+     *
+     * @param rands       Catalog of random points to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param Omega       Survey area in steradians.
+     * @param precision   Storage precision of the samples and the average map.
+     */
+    public OccupancyMap(Catalog rands, Box boundingBox, int numSamples, double Omega, Precision precision) {
+        this(rands, boundingBox, numSamples, Omega, new MapOptions().precision(precision));
+    }
+
+    /**
+     * Constructor. Creates the occupancy map with the given options.
+     *
+     * @param rands       Catalog of random points to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param Omega       Survey area in steradians.
+     * @param options     Options controlling how samples are drawn and stored.
+     */
+    public OccupancyMap(Catalog rands, Box boundingBox, int numSamples, double Omega, MapOptions options) {
+        super(rands, boundingBox, numSamples, options);
 
-        calculateExpectedn(Omega);
+        expectedn = calculateExpectedn(rands, numSamples, Omega);
 
         super.createAverageMap();
     }
 
+    /**
+     * Constructor for a view of a window of an existing occupancy map.
+     *
+     * @param parent Map to view.
+     * @param window Voxel-aligned sub-box of the parent's bounding box.
+     */
+    private OccupancyMap(OccupancyMap parent, Box window) {
+        super(parent, window);
+        this.expectedn = parent.expectedn;
+    }
+
+    /**
+     * Returns a view of a window of the occupancy map without copying the map values.
+     *
+     * @param window Voxel-aligned sub-box of the bounding box.
+     * @return OccupancyMap view.
+     */
+    public OccupancyMap view(Box window) {
+        return new OccupancyMap(this, window);
+    }
+
     /**
      * Calculates the expected number count density of the random points
      * using random points samples.
      *
+     * @param cat Catalog of random points.
+     * @param numSamples Number of redshift samples to draw for each random point.
      * @param Omega Survey area in steradians.
      * @return Randoms expected number count density.
      */
-    private double calculateExpectedn(double Omega){
+    static double calculateExpectedn(Catalog cat, int numSamples, double Omega){
         // Initialize the redshift bounds.
         double minZ = Double.POSITIVE_INFINITY;
         double maxZ = Double.NEGATIVE_INFINITY;
@@ -55,7 +105,7 @@ public class OccupancyMap extends AverageMap {
         for(int i = 0; i < cat.gals.length; i++){
             for(int j = 0; j < numSamples; j++) {
                 // Get a new redshift sample for the random point.
-                double zSamp = cat.gals[i].zPhoto  + rand.nextGaussian() * cat.gals[i].zErr;
+                double zSamp = cat.drawRedshift(i, rand);
 
                 // Get the redshift bin index of the current galaxy.
                 int ind = (int) ((zSamp - minZ) / DELTA_Z);
@@ -80,42 +130,53 @@ public class OccupancyMap extends AverageMap {
             double D_M = cat.cosmo.transverseComovingDist(midZ);
             n += N[i] / (D_M * D_M * Omega * cat.cosmo.differentialComDist(midZ, DELTA_Z));
         }
-        expectedn = n / numBuckets;
-
-        return expectedn;
+        return n / numBuckets;
     }
 
     @Override
     public double[][][] drawMapSample() {
-        // Declare and initialize the sample array.
-        double sample[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
-
-        // Add each random point to the appropriate voxel.
-        for(int i = 0; i < cat.gals.length; i++){
-            // Draw a Cartesian sample for the current galaxy.
-            CartesianGalaxy cartSamp = cat.drawCartesianSample(i);
-
-            // Calculate the index of the sampled point.
-            int a = (int) ((cartSamp.x - boundingBox.x0)/boundingBox.voxLen);
-            int b = (int) ((cartSamp.y - boundingBox.y0)/boundingBox.voxLen);
-            int c = (int) ((cartSamp.z - boundingBox.z0)/boundingBox.voxLen);
-
-            // Verify that the drawn point is within the box.
-            if(a >= 0 && a < boundingBox.nx && b >= 0 && b < boundingBox.ny && c >= 0 && c < boundingBox.nz){
-                sample[a][b][c]++;
-            }
-        }
+        // Add each random point to the voxels around it.
+        double weights[] = new double[boundingBox.nx * boundingBox.ny * boundingBox.nz];
+        scatterSample(weights, null);
 
         // Divide the number counts by the expected number counts to get the occupancy values.
-        double expectedN = expectedn * Math.pow(boundingBox.voxLen,3);
-        for(int i = 0; i < boundingBox.nx; i++){
+        double sample[][][] = new double[boundingBox.nx][boundingBox.ny][boundingBox.nz];
+        double expectedN = expectedCount(expectedn, boundingBox);
+        for(int i = 0, v = 0; i < boundingBox.nx; i++){
             for(int j = 0; j < boundingBox.ny; j++){
-                for(int k = 0; k < boundingBox.nz; k++){
-                    sample[i][j][k] /= expectedN;
+                for(int k = 0; k < boundingBox.nz; k++, v++){
+                    sample[i][j][k] = weights[v] / expectedN;
                 }
             }
         }
 
         return sample;
     }
+
+    @Override
+    double sampleNorm(IntToDoubleFunction count, int touched[], int numTouched, int excludedRegion) {
+        // The normalization does not depend on which voxels are left out.
+        return expectedCount(expectedn, boundingBox);
+    }
+
+    @Override
+    double voxelValue(int i, int j, int k, double count, double norm) {
+        return count / norm;
+    }
+
+    @Override
+    double emptyValue(int i, int j, int k) {
+        return 0;
+    }
+
+    /**
+     * Calculates the occupancy normalization, the expected number count of a voxel.
+     *
+     * @param expectedn Expected randoms number counts density.
+     * @param box Box the voxels belong to.
+     * @return Expected number count of a voxel.
+     */
+    static double expectedCount(double expectedn, Box box){
+        return expectedn * Math.pow(box.voxLen,3);
+    }
 }
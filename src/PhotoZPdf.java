@@ -0,0 +1,206 @@
+import java.util.Random;
+
+/**
+ * <h1>Photo-z PDF</h1>
+ * Binned photometric redshift PDFs for every galaxy of a catalog on a common redshift grid. The PDFs are stored as
+ * cumulative distributions in flat primitive arrays together with a Walker alias table per galaxy, so that both the
+ * CDF and a redshift draw take constant time. Redshifts are uniform within a bin.
+ */
+public class PhotoZPdf {
+    // Redshift grid.
+    final double zMin, dz;
+    final int numBins;
+
+    // Number of galaxies.
+    final int numGals;
+
+    // Cumulative probability up to the upper edge of each bin, galaxy g occupying [g * numBins, (g + 1) * numBins).
+    // Every non-empty bin raises the cumulative probability by at least one ulp so that it stays distinguishable from
+    // the empty bins.
+    private final float cum[];
+
+    // Alias table acceptance probabilities and aliases, laid out like cum.
+    private final float prob[];
+    private final short alias[];
+
+    /**
+     * Constructor. Normalizes the PDFs and builds the alias tables.
+     *
+     * @param zMin Lower edge of the first redshift bin.
+     * @param zMax Upper edge of the last redshift bin.
+     * @param pdfs Unnormalized binned PDF of each galaxy, all of the same length.
+     */
+    public PhotoZPdf(double zMin, double zMax, float pdfs[][]){
+        this.numGals = pdfs.length;
+        this.numBins = numGals > 0 ? pdfs[0].length : 0;
+        this.zMin = zMin;
+        this.dz = (zMax - zMin) / numBins;
+
+        if(numBins > Short.MAX_VALUE){
+            throw new IllegalArgumentException("At most " + Short.MAX_VALUE + " redshift bins are supported.");
+        }
+
+        if((long) numGals * numBins > Integer.MAX_VALUE){
+            throw new IllegalArgumentException(numGals + " PDFs of " + numBins
+                    + " bins exceed the maximum array size.");
+        }
+
+        cum = new float[numGals * numBins];
+        prob = new float[numGals * numBins];
+        alias = new short[numGals * numBins];
+
+        // Work arrays for Vose's alias method.
+        double scaled[] = new double[numBins];
+        int small[] = new int[numBins];
+        int large[] = new int[numBins];
+
+        for(int g = 0; g < numGals; g++){
+            if(pdfs[g].length != numBins){
+                throw new IllegalArgumentException("PDF of galaxy " + g + " has " + pdfs[g].length + " bins.");
+            }
+
+            // Normalize the PDF.
+            double sum = 0;
+            for(int j = 0; j < numBins; j++) sum += Math.max(0, pdfs[g][j]);
+            if(!(sum > 0)) throw new IllegalArgumentException("PDF of galaxy " + g + " is empty.");
+
+            int offset = g * numBins;
+            int numSmall = 0, numLarge = 0;
+            double running = 0;
+            for(int j = 0; j < numBins; j++){
+                double p = Math.max(0, pdfs[g][j]) / sum;
+                running += p;
+                float below = j > 0 ? cum[offset + j - 1] : 0;
+                cum[offset + j] = p > 0 ? Math.max((float) running, Math.nextUp(below)) : below;
+                scaled[j] = p * numBins;
+                if(scaled[j] < 1){
+                    small[numSmall++] = j;
+                }else{
+                    large[numLarge++] = j;
+                }
+            }
+
+            // Pair each under-full bin with an over-full one.
+            while(numSmall > 0 && numLarge > 0){
+                int s = small[--numSmall];
+                int l = large[--numLarge];
+                prob[offset + s] = (float) scaled[s];
+                alias[offset + s] = (short) l;
+
+                scaled[l] -= 1 - scaled[s];
+                if(scaled[l] < 1){
+                    small[numSmall++] = l;
+                }else{
+                    large[numLarge++] = l;
+                }
+            }
+
+            // The remaining bins are full up to rounding.
+            while(numLarge > 0){
+                int l = large[--numLarge];
+                prob[offset + l] = 1;
+                alias[offset + l] = (short) l;
+            }
+            while(numSmall > 0){
+                int s = small[--numSmall];
+                prob[offset + s] = 1;
+                alias[offset + s] = (short) s;
+            }
+        }
+    }
+
+    /**
+     * Constructor used by subset.
+     */
+    private PhotoZPdf(double zMin, double dz, int numBins, int numGals, float cum[], float prob[], short alias[]){
+        this.zMin = zMin;
+        this.dz = dz;
+        this.numBins = numBins;
+        this.numGals = numGals;
+        this.cum = cum;
+        this.prob = prob;
+        this.alias = alias;
+    }
+
+    /**
+     * Draws a redshift from the PDF of a galaxy.
+     *
+     * @param g Index of the galaxy.
+     * @param rand Random number generator.
+     * @return Redshift sample.
+     */
+    public double drawRedshift(int g, Random rand){
+        // Pick a column of the alias table and either keep it or take its alias.
+        double u = rand.nextDouble() * numBins;
+        int j = (int) u;
+        int ind = g * numBins + j;
+        int bin = u - j < prob[ind] ? j : alias[ind];
+
+        return zMin + (bin + rand.nextDouble()) * dz;
+    }
+
+    /**
+     * Probability that a redshift drawn for a galaxy lies below z.
+     *
+     * @param g Index of the galaxy.
+     * @param z Redshift.
+     * @return Cumulative probability.
+     */
+    public double cdf(int g, double z){
+        double x = (z - zMin) / dz;
+        if(x <= 0) return 0;
+        if(x >= numBins) return 1;
+
+        // Interpolate linearly within the bin.
+        int bin = (int) x;
+        int ind = g * numBins + bin;
+        double below = bin > 0 ? cum[ind - 1] : 0;
+
+        return Math.min(1, below + (x - bin) * (cum[ind] - below));
+    }
+
+    /**
+     * Returns the lower edge of the first non-empty bin of a galaxy.
+     *
+     * @param g Index of the galaxy.
+     * @return Minimum redshift.
+     */
+    public double minRedshift(int g){
+        int offset = g * numBins;
+        int j = 0;
+        while(j < numBins - 1 && cum[offset + j] == 0) j++;
+        return zMin + j * dz;
+    }
+
+    /**
+     * Returns the upper edge of the last non-empty bin of a galaxy.
+     *
+     * @param g Index of the galaxy.
+     * @return Maximum redshift.
+     */
+    public double maxRedshift(int g){
+        int offset = g * numBins;
+        int j = numBins - 1;
+        while(j > 0 && cum[offset + j] == cum[offset + j - 1]) j--;
+        return zMin + (j + 1) * dz;
+    }
+
+    /**
+     * Creates the PDFs of a subset of the galaxies.
+     *
+     * @param ids Indices of the galaxies to include.
+     * @return PhotoZPdf over the selected galaxies.
+     */
+    public PhotoZPdf subset(int ids[]){
+        float subCum[] = new float[ids.length * numBins];
+        float subProb[] = new float[ids.length * numBins];
+        short subAlias[] = new short[ids.length * numBins];
+        for(int i = 0; i < ids.length; i++){
+            System.arraycopy(cum, ids[i] * numBins, subCum, i * numBins, numBins);
+            System.arraycopy(prob, ids[i] * numBins, subProb, i * numBins, numBins);
+            System.arraycopy(alias, ids[i] * numBins, subAlias, i * numBins, numBins);
+        }
+
+        return new PhotoZPdf(zMin, dz, numBins, ids.length, subCum, subProb, subAlias);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <h1>Pipeline</h1>
+ * Runs a dependency graph of stages concurrently. Each stage starts as soon as all of the stages it depends on
+ * have finished, so independent stages (e.g. loading two catalogs, or writing one map while building the next)
+ * overlap.
+ */
+public class Pipeline {
+    // Executor the stages are run on.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // All stages added to the pipeline.
+    private final List<CompletableFuture<?>> stages = new ArrayList<>();
+
+    /**
+     * <h1>Stage</h1>
+     * A single unit of work in the pipeline.
+     *
+     * @param <T> Type of the stage result.
+     */
+    public interface Stage<T> {
+        /**
+         * Runs the stage.
+         *
+         * @return Result of the stage.
+         * @throws Exception
+         */
+        T run() throws Exception;
+    }
+
+    /**
+     * Adds a stage to the pipeline. The stage is started once all of its dependencies have completed, and the
+     * results of the dependencies can be retrieved inside the stage with join().
+     *
+     * @param name Name of the stage, printed when the stage starts.
+     * @param stage Work to run.
+     * @param deps Stages that must complete before this stage starts.
+     * @param <T> Type of the stage result.
+     * @return Future holding the result of the stage.
+     */
+    public synchronized <T> CompletableFuture<T> stage(String name, Stage<T> stage, CompletableFuture<?>... deps){
+        CompletableFuture<T> future = CompletableFuture.allOf(deps).thenApplyAsync(ignored -> {
+            System.out.println(name);
+            try {
+                return stage.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+
+        stages.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for every stage in the pipeline to finish and shuts down the executor.
+     *
+     * @throws Exception The first exception thrown by a failed stage.
+     */
+    public void await() throws Exception {
+        try {
+            CompletableFuture<?> all[];
+            synchronized (this){
+                all = stages.toArray(new CompletableFuture<?>[stages.size()]);
+            }
+            CompletableFuture.allOf(all).join();
+        } catch (CompletionException e) {
+            // Rethrow the original exception from the failed stage.
+            Throwable cause = e;
+            while(cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if(cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
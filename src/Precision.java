@@ -0,0 +1,22 @@
+/**
+ * <h1>Precision</h1>
+ * Storage precision used by an AverageMap while drawing and averaging samples.
+ */
+public enum Precision {
+    /**
+     * Per-sample galaxy counts are stored as ints, and the per-thread sums and the final map as doubles.
+     */
+    DOUBLE,
+
+    /**
+     * Per-sample galaxy counts are stored in 16 bits and each thread accumulates float partial sums, which are
+     * flushed into one shared double sum every few samples. The final map is stored as floats. Per voxel each thread
+     * takes 6 bytes instead of the 12 of DOUBLE; the touched voxel lists, bounded by the grid size, are the same for
+     * both, and each MIXED thread also lists the voxels touched since its last flush, bounded by the touched voxels
+     * of a few samples and by the grid size. No voxel may receive more than 65535 galaxies in a single sample.
+     *
+     * CIC and TSC assignment spread fractional weights, so their samples are always drawn into double weights and
+     * double per-thread sums. With those schemes MIXED only stores the final map as floats.
+     */
+    MIXED
+}
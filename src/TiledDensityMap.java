@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * <h1>Tiled Density Map</h1>
+ * Out-of-core DensityMap built one slab at a time into a memory-mapped file. The expected number count of each
+ * sample depends on the whole box, so it is calculated for every sample in a first pass before any slab is built.
+ */
+public class TiledDensityMap extends TiledMap {
+    TiledMap fMap;
+
+    // Number of contributing voxels, used to calculate the expected number counts.
+    int numContributors;
+
+    // Expected number count of each sample.
+    double norms[];
+
+    /**
+     * Constructor
+     *
+     * @param cat           Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox   Box of interest to work with.
+     * @param numSamples    Number of samples to generate and average over.
+     * @param fMap          Tiled occupancy map over exactly the same box.
+     * @param slabThickness Number of voxels along x in each slab.
+     * @param precision     Storage precision of the output file.
+     * @param fname         Output file.
+     * @throws IOException
+     */
+    public TiledDensityMap(Catalog cat, Box boundingBox, int numSamples, TiledMap fMap, int slabThickness,
+                           Precision precision, String fname) throws IOException {
+        super(cat, boundingBox, numSamples, slabThickness, precision, fname);
+        this.fMap = fMap;
+
+        // The occupancy map is read with the density map's voxel indices.
+        Box fBox = fMap.boundingBox;
+        double tol = 1e-6 * boundingBox.voxLen;
+        if(fBox.nx != boundingBox.nx || fBox.ny != boundingBox.ny || fBox.nz != boundingBox.nz
+                || fBox.voxLen != boundingBox.voxLen || Math.abs(fBox.x0 - boundingBox.x0) > tol
+                || Math.abs(fBox.y0 - boundingBox.y0) > tol || Math.abs(fBox.z0 - boundingBox.z0) > tol){
+            throw new IllegalArgumentException("The occupancy map must cover the same box as the density map.");
+        }
+
+        // Count the contributing voxels.
+        for(int i = 0; i < boundingBox.nx; i++){
+            for(int j = 0; j < boundingBox.ny; j++){
+                for(int k = 0; k < boundingBox.nz; k++){
+                    if(DensityMap.contributes(fMap.getValue(i,j,k))) numContributors++;
+                }
+            }
+        }
+
+        calculateNorms();
+
+        super.createTiledMap();
+    }
+
+    /**
+     * Calculates the expected number count of every sample from the galaxies landing in contributing voxels.
+     */
+    private void calculateNorms(){
+        norms = new double[numSamples];
+
+        int numCores = Runtime.getRuntime().availableProcessors();
+        Thread threads[] = new Thread[numCores];
+        for(int t = 0; t < numCores; t++){
+            int id = t;
+            threads[t] = new Thread(() -> {
+                int voxel[] = new int[3];
+                Random rand = new Random();
+                for(int samp = id; samp < numSamples; samp += numCores){
+                    double expectedN = 0;
+                    for(int g = 0; g < cat.gals.length; g++){
+                        if(!findVoxel(g, drawSample(samp, g, rand), voxel)) continue;
+
+                        double f = fMap.getValue(voxel[0], voxel[1], voxel[2]);
+                        if(DensityMap.contributes(f)) expectedN += 1 / f;
+                    }
+                    norms[samp] = expectedN / numContributors;
+                }
+            });
+        }
+        AverageMap.runThreads(threads);
+    }
+
+    @Override
+    double sampleNorm(int samp) {
+        return norms[samp];
+    }
+
+    @Override
+    double voxelValue(int i, int j, int k, int count, double norm) {
+        return DensityMap.densityContrast(count, fMap.getValue(i,j,k), norm);
+    }
+
+    @Override
+    double emptyValue(int i, int j, int k) {
+        return DensityMap.densityContrast(0, fMap.getValue(i,j,k), 1);
+    }
+}
@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * <h1>Tiled Map</h1>
+ * Out-of-core counterpart to AverageMap for grids larger than memory. The Box is split into slabs along x, galaxies
+ * are bucketed by the slabs their +/- 5 sigma (or PDF) line-of-sight segment can reach, and the slabs are built one
+ * at a time and spilled to a memory-mapped output file.
+ *
+ * Every galaxy position is drawn from a generator seeded by (sample, galaxy), so the same position is drawn
+ * whichever slab is being built. This lets extending classes compute global per-sample normalizations up front.
+ */
+public abstract class TiledMap {
+    // Reference catalog and bounding box.
+    final Catalog cat;
+    final Box boundingBox;
+
+    // Sample number information and the seed all samples are derived from.
+    final int numSamples;
+    final long seed;
+
+    // Slab layout.
+    final int slabThickness;
+    final int numSlabs;
+
+    // Storage precision of the output file.
+    final Precision precision;
+    private final int bytesPerValue;
+
+    // Memory-mapped output, one buffer per slab.
+    private final MappedByteBuffer slabs[];
+
+    // First and last slab reachable by each galaxy.
+    private final int slabMin[], slabMax[];
+
+    // Galaxies bucketed by slab: the ids of slab s are bucketIds[bucketStart[s]] to bucketIds[bucketStart[s+1]-1].
+    private final int bucketStart[], bucketIds[];
+
+    /**
+     * Constructor. Creates the output file and buckets the galaxies by slab. Extending classes call createTiledMap
+     * once they are ready to normalize samples.
+     *
+     * @param cat Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples Number of samples to generate and average over.
+     * @param slabThickness Number of voxels along x in each slab.
+     * @param precision Storage precision of the output file (DOUBLE or MIXED for float).
+     * @param fname Output file to spill the finished slabs to.
+     * @throws IOException
+     */
+    public TiledMap(Catalog cat, Box boundingBox, int numSamples, int slabThickness, Precision precision,
+                    String fname) throws IOException {
+        this.cat = cat;
+        this.boundingBox = boundingBox;
+        this.numSamples = numSamples;
+        this.seed = new Random().nextLong();
+        this.slabThickness = slabThickness;
+        this.numSlabs = (boundingBox.nx + slabThickness - 1) / slabThickness;
+        this.precision = precision;
+        this.bytesPerValue = precision == Precision.MIXED ? 4 : 8;
+
+        // Each slab is mapped separately, so a single slab must fit in one buffer.
+        long slabBytes = (long) slabThickness * boundingBox.ny * boundingBox.nz * bytesPerValue;
+        if(slabBytes > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Slab of " + slabBytes + " bytes is too large to map.");
+        }
+
+        // Create the output file and map each slab.
+        slabs = new MappedByteBuffer[numSlabs];
+        try(RandomAccessFile file = new RandomAccessFile(fname, "rw")){
+            file.setLength((long) boundingBox.nx * boundingBox.ny * boundingBox.nz * bytesPerValue);
+            FileChannel channel = file.getChannel();
+            for(int s = 0; s < numSlabs; s++){
+                long start = (long) slabStart(s) * boundingBox.ny * boundingBox.nz * bytesPerValue;
+                long length = (long) (slabEnd(s) - slabStart(s)) * boundingBox.ny * boundingBox.nz * bytesPerValue;
+                slabs[s] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+            }
+        }
+
+        // Find the slab range of each galaxy and count the galaxies in each slab.
+        slabMin = new int[cat.gals.length];
+        slabMax = new int[cat.gals.length];
+        bucketStart = new int[numSlabs + 1];
+        for(int g = 0; g < cat.gals.length; g++){
+            double range[] = cat.distanceRange(g);
+
+            // The x coordinate is linear along the ray, so the segment endpoints bound its range.
+            double closeX = range[0] * cat.cartNorms[g].x;
+            double farX = range[1] * cat.cartNorms[g].x;
+            int aMin = (int) Math.floor((Math.min(closeX, farX) - boundingBox.x0) / boundingBox.voxLen);
+            int aMax = (int) Math.floor((Math.max(closeX, farX) - boundingBox.x0) / boundingBox.voxLen);
+            aMin = Math.max(aMin, 0);
+            aMax = Math.min(aMax, boundingBox.nx - 1);
+
+            // Galaxies that never reach the box get an empty range.
+            if(aMin > aMax){
+                slabMin[g] = 0;
+                slabMax[g] = -1;
+                continue;
+            }
+
+            slabMin[g] = aMin / slabThickness;
+            slabMax[g] = aMax / slabThickness;
+            for(int s = slabMin[g]; s <= slabMax[g]; s++) bucketStart[s + 1]++;
+        }
+
+        // Fill the buckets.
+        for(int s = 0; s < numSlabs; s++) bucketStart[s + 1] += bucketStart[s];
+        bucketIds = new int[bucketStart[numSlabs]];
+        int fill[] = new int[numSlabs];
+        for(int g = 0; g < cat.gals.length; g++){
+            for(int s = slabMin[g]; s <= slabMax[g]; s++){
+                bucketIds[bucketStart[s] + fill[s]++] = g;
+            }
+        }
+    }
+
+    /**
+     * Returns the first x index of a slab.
+     *
+     * @param s Slab index.
+     * @return First x index.
+     */
+    int slabStart(int s){
+        return s * slabThickness;
+    }
+
+    /**
+     * Returns one past the last x index of a slab.
+     *
+     * @param s Slab index.
+     * @return End x index.
+     */
+    int slabEnd(int s){
+        return Math.min((s + 1) * slabThickness, boundingBox.nx);
+    }
+
+    /**
+     * Returns the map value of a voxel from the output file.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @return Map value.
+     */
+    public double getValue(int i, int j, int k){
+        int s = i / slabThickness;
+        int ind = (((i - slabStart(s)) * boundingBox.ny + j) * boundingBox.nz + k) * bytesPerValue;
+        if(precision == Precision.MIXED) return slabs[s].getFloat(ind);
+        return slabs[s].getDouble(ind);
+    }
+
+    /**
+     * Stores the map value of a voxel in the output file.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @param value Map value.
+     */
+    void setValue(int i, int j, int k, double value){
+        int s = i / slabThickness;
+        int ind = (((i - slabStart(s)) * boundingBox.ny + j) * boundingBox.nz + k) * bytesPerValue;
+        if(precision == Precision.MIXED){
+            slabs[s].putFloat(ind, (float) value);
+        }else{
+            slabs[s].putDouble(ind, value);
+        }
+    }
+
+    /**
+     * Draws the Cartesian sample of a galaxy for the given sample number. The same position is returned every time.
+     *
+     * @param samp Sample number.
+     * @param g Index of the galaxy.
+     * @param rand Random number generator to reseed and draw with.
+     * @return CartesianGalaxy object containing the coordinates of the sample.
+     */
+    CartesianGalaxy drawSample(int samp, int g, Random rand){
+        // Mix the sample and galaxy into the seed (SplitMix64 finalizer).
+        long z = seed + ((long) samp * cat.gals.length + g) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        rand.setSeed(z ^ (z >>> 31));
+
+        return cat.drawCartesianSample(g, rand);
+    }
+
+    /**
+     * Calculates the voxel of a sampled point, or returns false if the point is outside the box or outside the
+     * slabs its galaxy was bucketed into.
+     *
+     * @param g Index of the galaxy.
+     * @param cartSamp Sampled point.
+     * @param voxel Array of length 3 to store the voxel indices in.
+     * @return Whether the point lands in a voxel.
+     */
+    boolean findVoxel(int g, CartesianGalaxy cartSamp, int voxel[]){
+        int a = (int) ((cartSamp.x - boundingBox.x0)/boundingBox.voxLen);
+        int b = (int) ((cartSamp.y - boundingBox.y0)/boundingBox.voxLen);
+        int c = (int) ((cartSamp.z - boundingBox.z0)/boundingBox.voxLen);
+
+        if(a < 0 || a >= boundingBox.nx || b < 0 || b >= boundingBox.ny || c < 0 || c >= boundingBox.nz) return false;
+        if(a / slabThickness < slabMin[g] || a / slabThickness > slabMax[g]) return false;
+
+        voxel[0] = a;
+        voxel[1] = b;
+        voxel[2] = c;
+        return true;
+    }
+
+    /**
+     * Builds every slab in turn and spills it to the output file.
+     */
+    public void createTiledMap(){
+        int numCores = Runtime.getRuntime().availableProcessors();
+
+        for(int s = 0; s < numSlabs; s++){
+            // Create and run the slab threads.
+            SlabThread threads[] = new SlabThread[numCores];
+            for(int t = 0; t < numCores; t++) threads[t] = new SlabThread(s, t, numCores);
+            AverageMap.runThreads(threads);
+
+            // Reduce the thread sums, add back the empty values and store the slab.
+            for(int i = slabStart(s); i < slabEnd(s); i++){
+                for(int j = 0; j < boundingBox.ny; j++){
+                    for(int k = 0; k < boundingBox.nz; k++){
+                        double sum = 0;
+                        for(int t = 0; t < numCores; t++) sum += threads[t].sum[i - slabStart(s)][j][k];
+                        setValue(i, j, k, sum / numSamples + emptyValue(i, j, k));
+                    }
+                }
+            }
+        }
+
+        for(int s = 0; s < numSlabs; s++) slabs[s].force();
+    }
+
+    /**
+     * Returns the normalization of a sample. Must be the same for every slab.
+     *
+     * @param samp Sample number.
+     * @return Normalization passed to voxelValue.
+     */
+    abstract double sampleNorm(int samp);
+
+    /**
+     * Calculates the map value of a single voxel from its raw galaxy count.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @param count Raw galaxy count of the voxel.
+     * @param norm Normalization returned by sampleNorm for the sample.
+     * @return Map sample value of the voxel.
+     */
+    abstract double voxelValue(int i, int j, int k, int count, double norm);
+
+    /**
+     * Calculates the map value of a voxel containing no galaxies. Must not depend upon the sample normalization.
+     *
+     * @param i x index of the voxel.
+     * @param j y index of the voxel.
+     * @param k z index of the voxel.
+     * @return Map sample value of an empty voxel.
+     */
+    abstract double emptyValue(int i, int j, int k);
+
+    /**
+     * <h1>Slab Thread</h1>
+     * A thread class that draws the samples of the galaxies bucketed into one slab and sums the touched voxel values.
+     */
+    private class SlabThread extends Thread{
+        int slab;
+        int id;
+        int numWorkers;
+        double sum[][][];
+
+        public SlabThread(int slab, int id, int numWorkers){
+            this.slab = slab;
+            this.id = id;
+            this.numWorkers = numWorkers;
+        }
+
+        public void run(){
+            int i0 = slabStart(slab);
+            int nxSlab = slabEnd(slab) - i0;
+            sum = new double[nxSlab][boundingBox.ny][boundingBox.nz];
+            int counts[][][] = new int[nxSlab][boundingBox.ny][boundingBox.nz];
+            int touched[] = new int[3 * (bucketStart[slab + 1] - bucketStart[slab])];
+            int voxel[] = new int[3];
+            Random rand = new Random();
+
+            for(int samp = id; samp < numSamples; samp += numWorkers){
+                // Bin the galaxies of the slab that land in it.
+                int numTouched = 0;
+                for(int n = bucketStart[slab]; n < bucketStart[slab + 1]; n++){
+                    int g = bucketIds[n];
+                    if(!findVoxel(g, drawSample(samp, g, rand), voxel)) continue;
+
+                    int a = voxel[0] - i0;
+                    if(a < 0 || a >= nxSlab) continue;
+
+                    // Record the voxel the first time it is touched.
+                    if(counts[a][voxel[1]][voxel[2]]++ == 0){
+                        touched[3 * numTouched] = a;
+                        touched[3 * numTouched + 1] = voxel[1];
+                        touched[3 * numTouched + 2] = voxel[2];
+                        numTouched++;
+                    }
+                }
+
+                // Add the touched voxel values relative to the empty value and reset the counts.
+                double norm = sampleNorm(samp);
+                for(int n = 0; n < numTouched; n++){
+                    int a = touched[3 * n], j = touched[3 * n + 1], k = touched[3 * n + 2];
+                    sum[a][j][k] += voxelValue(a + i0, j, k, counts[a][j][k], norm) - emptyValue(a + i0, j, k);
+                    counts[a][j][k] = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+
+/**
+ * <h1>Tiled Occupancy Map</h1>
+ * Out-of-core OccupancyMap built one slab at a time into a memory-mapped file.
+ */
+public class TiledOccupancyMap extends TiledMap {
+    // Expected randoms number counts density.
+    double expectedn;
+
+    /**
+     * Constructor. Creates the occupancy map.
+     *
+     * @param rands         Catalog of random points to create map samples.
+     * @param boundingBox   Box of interest to work with.
+     * @param numSamples    Number of samples to generate and average over.
+     * @param Omega         Survey area in steradians.
+     * @param slabThickness Number of voxels along x in each slab.
+     * @param precision     Storage precision of the output file.
+     * @param fname         Output file.
+     * @throws IOException
+     */
+    public TiledOccupancyMap(Catalog rands, Box boundingBox, int numSamples, double Omega, int slabThickness,
+                             Precision precision, String fname) throws IOException {
+        super(rands, boundingBox, numSamples, slabThickness, precision, fname);
+
+        expectedn = OccupancyMap.calculateExpectedn(rands, numSamples, Omega);
+
+        super.createTiledMap();
+    }
+
+    @Override
+    double sampleNorm(int samp) {
+        return OccupancyMap.expectedCount(expectedn, boundingBox);
+    }
+
+    @Override
+    double voxelValue(int i, int j, int k, int count, double norm) {
+        return count / norm;
+    }
+
+    @Override
+    double emptyValue(int i, int j, int k) {
+        return 0;
+    }
+}
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * <h1>Tomographic Map</h1>
+ * Density maps of several photo-z bins created in a single pass over the catalog. Each galaxy's sample is drawn
+ * once and counted in every bin its photo-z falls in, and each bin is normalized like a separate DensityMap. The
+ * bins share the occupancy map and may overlap.
+ *
+ * Besides the bin maps, sampling holds one shared sum grid per bin, merged into under a per-bin lock, while each
+ * thread keeps a single count grid and the draw of every member galaxy, whatever the number of bins.
+ */
+public class TomographicMap {
+    // Reference catalog, bounding box and occupancy map.
+    final Catalog cat;
+    final Box boundingBox;
+    final OccupancyMap fMap;
+
+    // Sample number information.
+    final int numSamples;
+
+    // Photo-z limits of each bin, zMin[b] <= zPhoto < zMax[b].
+    final double zMin[], zMax[];
+
+    // Density map of each bin.
+    final DensityMap maps[];
+
+    // Galaxies belonging to at least one bin, and the indices into members of the galaxies of each bin.
+    private final int members[];
+    private final int binMembers[][];
+
+    // Line-of-sight table if drawing directly into voxels.
+    private final LineOfSightTable losTable;
+
+    /**
+     * Constructor. Creates the density map of every bin.
+     *
+     * @param cat         Catalog of Galaxy objects used to create map samples.
+     * @param boundingBox Box of interest to work with.
+     * @param numSamples  Number of samples to generate and average over.
+     * @param fMap        OccupancyMap containing the percent occupancy of each voxel in boundingBox.
+     * @param zMin        Lower photo-z limit of each bin.
+     * @param zMax        Upper photo-z limit of each bin.
+     * @param options     Options controlling how samples are drawn and stored. Only NGP assignment without jackknife
+     *                    regions is supported.
+     */
+    public TomographicMap(Catalog cat, Box boundingBox, int numSamples, OccupancyMap fMap, double zMin[],
+                          double zMax[], MapOptions options){
+        if(zMin.length != zMax.length) throw new IllegalArgumentException("zMin and zMax must have the same length.");
+
+        // Every draw is counted as a single voxel and bins have no jackknife maps.
+        if(options.assignment != Assignment.NGP){
+            throw new IllegalArgumentException("TomographicMap only supports NGP assignment.");
+        }
+        if(options.regions != null){
+            throw new IllegalArgumentException("TomographicMap does not support jackknife regions.");
+        }
+
+        this.cat = cat;
+        this.boundingBox = boundingBox;
+        this.numSamples = numSamples;
+        this.fMap = fMap;
+        this.zMin = zMin;
+        this.zMax = zMax;
+
+        // The bin maps only store and normalize, so they never need their own line-of-sight tables.
+        maps = new DensityMap[zMin.length];
+        MapOptions binOptions = new MapOptions().precision(options.precision);
+        for(int b = 0; b < maps.length; b++){
+            maps[b] = new DensityMap(cat, boundingBox, numSamples, fMap, binOptions, false);
+        }
+        losTable = options.lineOfSight ? new LineOfSightTable(cat, boundingBox) : null;
+
+        // Find the galaxies belonging to at least one bin.
+        int numMembers = 0;
+        int allMembers[] = new int[cat.gals.length];
+        for(int i = 0; i < cat.gals.length; i++){
+            for(int b = 0; b < maps.length; b++){
+                if(inBin(i, b)){
+                    allMembers[numMembers++] = i;
+                    break;
+                }
+            }
+        }
+        members = Arrays.copyOf(allMembers, numMembers);
+
+        // Find the members of each bin.
+        binMembers = new int[maps.length][];
+        int bin[] = new int[numMembers];
+        for(int b = 0; b < maps.length; b++){
+            int numBinMembers = 0;
+            for(int m = 0; m < numMembers; m++){
+                if(inBin(members[m], b)) bin[numBinMembers++] = m;
+            }
+            binMembers[b] = Arrays.copyOf(bin, numBinMembers);
+        }
+
+        createMaps();
+    }
+
+    /**
+     * Checks whether a galaxy's photo-z falls in a bin.
+     *
+     * @param i Galaxy index.
+     * @param b Bin index.
+     * @return True if zMin[b] <= zPhoto < zMax[b].
+     */
+    private boolean inBin(int i, int b){
+        return cat.gals[i].zPhoto >= zMin[b] && cat.gals[i].zPhoto < zMax[b];
+    }
+
+    /**
+     * Returns the density map of a bin.
+     *
+     * @param bin Bin index.
+     * @return DensityMap of the bin.
+     */
+    public DensityMap getMap(int bin){
+        return maps[bin];
+    }
+
+    /**
+     * Creates the average map of every bin in parallel using sample drawing threads.
+     */
+    private void createMaps(){
+        // Get the number of cores.
+        int numCores = Runtime.getRuntime().availableProcessors();
+
+        // Sums of each bin shared by all threads.
+        double sums[][][][] = new double[maps.length][boundingBox.nx][boundingBox.ny][boundingBox.nz];
+
+        // Create and run all of the map threads.
+        TomographicThread threads[] = new TomographicThread[numCores];
+        for(int t = 0; t < numCores; t++) threads[t] = new TomographicThread(t, numCores, sums);
+        AverageMap.runThreads(threads);
+
+        // Average the sums of each bin and add back the empty voxel values.
+        for(int b = 0; b < maps.length; b++){
+            for(int i = 0; i < boundingBox.nx; i++){
+                for(int j = 0; j < boundingBox.ny; j++){
+                    for(int k = 0; k < boundingBox.nz; k++){
+                        maps[b].setValue(i, j, k, sums[b][i][j][k] / numSamples + maps[b].emptyValue(i, j, k));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * <h1>Tomographic Thread</h1>
+     * A thread class that draws samples of the catalog and, bin by bin, counts the draws of the bin's members and
+     * adds the touched voxel values to the bin's shared sums.
+     */
+    private class TomographicThread extends Thread{
+        int id;
+        int numWorkers;
+        final double sums[][][][];
+
+        public TomographicThread(int id, int numWorkers, double sums[][][][]){
+            this.id = id;
+            this.numWorkers = numWorkers;
+            this.sums = sums;
+        }
+
+        public void run(){
+            int numBins = maps.length;
+            int ny = boundingBox.ny, nz = boundingBox.nz;
+            int numVoxels = boundingBox.nx * ny * nz;
+            int maxBinMembers = 0;
+            for(int b = 0; b < numBins; b++) maxBinMembers = Math.max(maxBinMembers, binMembers[b].length);
+
+            // Flat voxel of each member's draw (-1 outside the box), and the counts of the bin being added.
+            int draws[] = new int[members.length];
+            int counts[] = new int[numVoxels];
+            int touched[] = new int[Math.min(maxBinMembers, numVoxels)];
+            double values[] = new double[touched.length];
+            IntToDoubleFunction count = v -> counts[v];
+            Random rand = ThreadLocalRandom.current();
+
+            for(int samp = id; samp < numSamples; samp += numWorkers){
+                // Draw each galaxy once for all of its bins.
+                for(int m = 0; m < members.length; m++){
+                    draws[m] = AverageMap.drawVoxel(cat, boundingBox, losTable, members[m], rand);
+                }
+
+                // Count, normalize and add each bin, starting from a different bin in each thread so that the threads
+                // rarely wait on the same sums.
+                for(int q = 0; q < numBins; q++){
+                    int b = (q + id) % numBins;
+                    int numTouched = 0;
+                    for(int m : binMembers[b]){
+                        int v = draws[m];
+                        if(v < 0) continue;
+
+                        // Record the voxel the first time it is touched.
+                        if(counts[v]++ == 0) touched[numTouched++] = v;
+                    }
+
+                    // Evaluate the values before taking the lock.
+                    double norm = maps[b].sampleNorm(count, touched, numTouched, -1);
+                    for(int n = 0; n < numTouched; n++){
+                        int v = touched[n];
+                        int i = v / (ny * nz), j = (v / nz) % ny, k = v % nz;
+                        values[n] = maps[b].voxelValue(i, j, k, counts[v], norm) - maps[b].emptyValue(i, j, k);
+                        counts[v] = 0;
+                    }
+
+                    synchronized (sums[b]){
+                        for(int n = 0; n < numTouched; n++){
+                            int v = touched[n];
+                            sums[b][v / (ny * nz)][(v / nz) % ny][v % nz] += values[n];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}